@@ -9,6 +9,7 @@ import java.time.format.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.prefs.Preferences;
 import java.util.spi.ToolProvider;
 import java.util.stream.*;
 
@@ -21,11 +22,21 @@ public class Build {
         .map(Artifact::of)
         .toList();
 
+    // Every build found for a platform is embedded, the fastest one the cpu supports is picked at startup.
+    // There are no official avx512/vnni512 builds of Stockfish 15, place your own in cache/stockfish to embed them.
     static List<Stockfish> stockfishList = List.of(
-            new Stockfish(Platform.of("linux", "x64"), "stockfish_15_linux_x64_bmi2.zip", true),
-            new Stockfish(Platform.of("windows", "x64"), "stockfish_15_win_x64_bmi2.zip", true),
-            new Stockfish(Platform.of("macos", "x64"), "stockfish_15_mac_x64_modern.zip", false),
-            new Stockfish(Platform.of("macos", "aarch64"), "stockfish_15_mac_apple-silicon.zip", false));
+            new Stockfish(Platform.of("linux", "x64"), "vnni512", "stockfish_15_linux_x64_vnni512.zip", false),
+            new Stockfish(Platform.of("linux", "x64"), "avx512", "stockfish_15_linux_x64_avx512.zip", false),
+            new Stockfish(Platform.of("linux", "x64"), "bmi2", "stockfish_15_linux_x64_bmi2.zip", true),
+            new Stockfish(Platform.of("linux", "x64"), "avx2", "stockfish_15_linux_x64_avx2.zip", true),
+            new Stockfish(Platform.of("linux", "x64"), "modern", "stockfish_15_linux_x64_modern.zip", true),
+            new Stockfish(Platform.of("linux", "x64"), "x64", "stockfish_15_linux_x64.zip", true),
+            new Stockfish(Platform.of("windows", "x64"), "bmi2", "stockfish_15_win_x64_bmi2.zip", true),
+            new Stockfish(Platform.of("windows", "x64"), "avx2", "stockfish_15_win_x64_avx2.zip", true),
+            new Stockfish(Platform.of("windows", "x64"), "modern", "stockfish_15_win_x64_modern.zip", true),
+            new Stockfish(Platform.of("windows", "x64"), "x64", "stockfish_15_win_x64.zip", true),
+            new Stockfish(Platform.of("macos", "x64"), "modern", "stockfish_15_mac_x64_modern.zip", false),
+            new Stockfish(Platform.of("macos", "aarch64"), "apple-silicon", "stockfish_15_mac_apple-silicon.zip", false));
 
     public static void main(String... args) throws Exception {
         var props = Arrays.stream(args)
@@ -38,6 +49,7 @@ public class Build {
         var timestamp = props.getOrDefault("timestamp", ZonedDateTime.now()
             .withNano(0).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
         var cross = Arrays.stream(args).anyMatch("cross"::equals);
+        var startup = Arrays.stream(args).anyMatch("startup"::equals);
 
         var javac = ToolProvider.findFirst("javac").orElseThrow();
         var jar   = ToolProvider.findFirst("jar").orElseThrow();
@@ -57,7 +69,9 @@ public class Build {
         Path cacheStock = cache.resolve("stockfish");
 
         Path moduleSrc = Path.of("src");
+        Path benchSrc = Path.of("src", "bench");
         Path classes = out.resolve("classes");
+        Path benchClasses = out.resolve("bench");
         Path moduleOut = out.resolve("modules");
         Path metaInf = out.resolve("META-INF");
         Path manifest = out.resolve("MANIFEST.MF");
@@ -129,11 +143,32 @@ public class Build {
                 "-d", classes.toString()
            );
 
+        // The benchmarks are left out of the module and the runtime images. They share the
+        // package of what they measure, so they are compiled and run on the class path.
+        var libJars = deps.stream().map(dep -> lib.resolve(dep.artifactId() + ".jar").toString()).toList();
+        var benchClassPath = String.join(File.pathSeparator,
+                Stream.concat(Stream.of(classes.resolve(module).toString()), libJars.stream()).toList());
+        try (var sources = Files.walk(benchSrc)) {
+            run(javac, Stream.concat(Stream.of(
+                        "--enable-preview",
+                        "--release", "19",
+                        "--class-path", benchClassPath,
+                        "-d", benchClasses.toString()),
+                        sources.map(Path::toString).filter(s -> s.endsWith(".java")))
+                    .toArray(String[]::new)
+               );
+        }
+
         var launchers = List.of(
-                "--launcher", "ee=ee/ee.GUI",
-                "--launcher", "ee-cli=ee/ee.CLI"
+                new Launcher("ee", "ee/ee.GUI", List.of()),
+                new Launcher("ee-cli", "ee/ee.CLI", List.of("--token=training")),
+                new Launcher("ee-worker", "ee/ee.Worker", List.of("--help"))
                 );
 
+        var launcherArgs = launchers.stream()
+            .flatMap(launcher -> Stream.of("--launcher", launcher.name() + "=" + launcher.main()))
+            .toList();
+
         var moduleJar = moduleOut.resolve(prefix + ".jar");
 
         run(jar,
@@ -158,25 +193,29 @@ public class Build {
                             "--no-man-pages",
                             "--no-header-files",
                             "--strip-debug",
+                            "--generate-cds-archive",
                             "--module-path", String.join(File.pathSeparator, nativeJmods.toString(), moduleJar.toString(), lib.toString()),
                             "--add-modules", module,
                             "--output", out.resolve("runtime").toString()),
-                            launchers.stream())
+                            launcherArgs.stream())
                         .toArray(String[]::new)
                    );
             }
+
+            cds(out.resolve("runtime"), launchers);
         }
 
         for (var future : stockfishFutures) future.get();
 
         var stockfish = stockfishList.stream()
             .filter(sf -> sf.osArch().equals(Platform.current()))
-            .map(sf -> cacheStock.resolve(sf.filename()))
-            .findFirst().orElse(Path.of(""));
+            .filter(sf -> cacheStock.resolve(sf.filename()).toFile().exists())
+            .toList();
 
-        if (stockfish.toFile().exists()) {
+        if (! stockfish.isEmpty()) {
             var stockDir = Files.createDirectory(out.resolve(Path.of("stockfish-" + Platform.current())));
-            Files.copy(stockfish, stockDir.resolve("stockfish.zip"));
+            for (var sf : stockfish)
+                Files.copy(cacheStock.resolve(sf.filename()), stockDir.resolve(sf.embeddedName()));
             var moduleEmbedJar = moduleOut.resolve(prefix + "-embed.jar");
             run(jar,
                     "--create",
@@ -186,7 +225,7 @@ public class Build {
                     "--file", moduleEmbedJar.toString(),
                     "-C", out.toString(), "META-INF",
                     "-C", classes.resolve(module).toString(), ".",
-                    "-C", stockDir.toString(),"stockfish.zip"
+                    "-C", stockDir.toString(), "."
                );
             del(stockDir);
 
@@ -202,16 +241,24 @@ public class Build {
                                     "--compress", "2",
                                     "--no-man-pages",
                                     "--no-header-files",
+                                    "--generate-cds-archive",
                                     "--module-path", String.join(File.pathSeparator, nativeJmods.toString(), moduleEmbedJar.toString(), lib.toString()),
                                     "--add-modules", module,
                                     "--output", out.resolve("runtime-embed").toString()),
-                                launchers.stream())
+                                launcherArgs.stream())
                             .toArray(String[]::new)
                        );
                 }
+
+                cds(out.resolve("runtime-embed"), launchers);
             }
         }
 
+        if (! cross && startup) {
+            for (var runtime : List.of(out.resolve("runtime"), out.resolve("runtime-embed")))
+                if (runtime.toFile().exists()) startupBenchmark(runtime, launchers);
+        }
+
         if (! cross) {
             try {
                 new ProcessBuilder("zip", "-r", "../" + prefix + "-" + Platform.current() + ".zip", ".")
@@ -354,19 +401,20 @@ public class Build {
                                 "--module-path", String.join(File.pathSeparator, jdk.jmods().toString(), moduleJar.toString(), lib.toString()),
                                 "--add-modules", module,
                                 "--output", out.resolve(jdk.downloadableVersionedJdk().versionedJdk().jdk().osAndArch()).resolve(prefix).toString()),
-                                launchers.stream())
+                                launcherArgs.stream())
                             .toArray(String[]::new)
                        );
 
                     var cachedStockfish = stockfishList.stream()
                         .filter(sf -> sf.osArch().equals(jdk.downloadableVersionedJdk().versionedJdk().jdk().osArch()))
-                        .map(sf -> cacheStock.resolve(sf.filename()))
-                        .findFirst().orElse(Path.of(""));
+                        .filter(sf -> cacheStock.resolve(sf.filename()).toFile().exists())
+                        .toList();
 
-                    if (cachedStockfish.toFile().exists()) {
+                    if (! cachedStockfish.isEmpty()) {
                         try {
                             var stockDir = Files.createDirectory(out.resolve("stockfish-" + jdk.downloadableVersionedJdk().versionedJdk().jdk().osArch()));
-                            Files.copy(cachedStockfish, stockDir.resolve("stockfish.zip"));
+                            for (var sf : cachedStockfish)
+                                Files.copy(cacheStock.resolve(sf.filename()), stockDir.resolve(sf.embeddedName()));
 
                             var moduleEmbedJar = moduleOut.resolve(prefix + "-embed.jar");
                             run(jar,
@@ -377,7 +425,7 @@ public class Build {
                                     "--file", moduleEmbedJar.toString(),
                                     "-C", out.toString(), "META-INF",
                                     "-C", classes.resolve(module).toString(), ".",
-                                    "-C", stockDir.toString(),"stockfish.zip"
+                                    "-C", stockDir.toString(), "."
                                );
 
                             run(jlink, Stream.concat( Stream.of(
@@ -388,7 +436,7 @@ public class Build {
                                             "--module-path", String.join(File.pathSeparator, jdk.jmods().toString(), moduleEmbedJar.toString(), lib.toString()),
                                             "--add-modules", module,
                                             "--output", out.resolve(jdk.downloadableVersionedJdk().versionedJdk().jdk().osAndArch() + "-embed").resolve(prefix).toString()),
-                                        launchers.stream())
+                                        launcherArgs.stream())
                                     .toArray(String[]::new)
                                );
                         } catch(IOException ioe) {
@@ -426,6 +474,97 @@ public class Build {
         }
     }
 
+    // Dynamic AppCDS archive per launcher, dumped from a training run of the
+    // launcher's startup path and picked up by the patched bin/ scripts.
+    static void cds(Path runtime, List<Launcher> launchers) {
+        for (var launcher : launchers) {
+            Path archive = runtime.resolve("lib").resolve(launcher.archiveName());
+            var command = new ArrayList<String>(List.of(
+                        runtime.resolve("bin").resolve(Platform.current().os().equals("windows") ? "java.exe" : "java").toString(),
+                        "-XX:ArchiveClassesAtExit=" + archive,
+                        "-Dee.training=true",
+                        "-Dprefs=ee-training",
+                        "-m", launcher.main()));
+            command.addAll(launcher.trainingArgs());
+            try {
+                var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                var output = new String(process.getInputStream().readAllBytes());
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    System.out.format("Skipping CDS archive for %s, training run exited with code %d%n%s%n", launcher.name(), exitCode, output);
+                    Files.deleteIfExists(archive);
+                    continue;
+                }
+            } catch (Exception e) {
+                System.out.format("Skipping CDS archive for %s, %s%n", launcher.name(), e);
+                continue;
+            }
+
+            if (! archive.toFile().exists()) continue;
+
+            System.out.println("Created " + archive);
+
+            Path bin = runtime.resolve("bin");
+            try {
+                Path sh = bin.resolve(launcher.name());
+                if (sh.toFile().exists()) {
+                    Files.writeString(sh, Files.readString(sh).replace("$JLINK_VM_OPTIONS -m",
+                                "-XX:SharedArchiveFile=\"$DIR/../lib/%s\" $JLINK_VM_OPTIONS -m".formatted(launcher.archiveName())));
+                }
+                Path bat = bin.resolve(launcher.name() + ".bat");
+                if (bat.toFile().exists()) {
+                    Files.writeString(bat, Files.readString(bat).replace("%JLINK_VM_OPTIONS% -m",
+                                "-XX:SharedArchiveFile=\"%%DIR%%\\..\\lib\\%s\" %%JLINK_VM_OPTIONS%% -m".formatted(launcher.archiveName())));
+                }
+            } catch (IOException ioe) { throw new RuntimeException(ioe); }
+        }
+
+        clearTrainingPrefs();
+    }
+
+    static void startupBenchmark(Path runtime, List<Launcher> launchers) {
+        int runs = 10;
+        Path java = runtime.resolve("bin").resolve(Platform.current().os().equals("windows") ? "java.exe" : "java");
+        for (var launcher : launchers) {
+            Path archive = runtime.resolve("lib").resolve(launcher.archiveName());
+            if (! archive.toFile().exists()) continue;
+
+            Function<List<String>, Long> medianMillis = vmOptions -> {
+                var command = new ArrayList<String>();
+                command.add(java.toString());
+                command.addAll(vmOptions);
+                command.addAll(List.of("-Dee.training=true", "-Dprefs=ee-training", "-m", launcher.main()));
+                command.addAll(launcher.trainingArgs());
+                var millis = new ArrayList<Long>();
+                for (int i = 0; i < runs; i++) {
+                    try {
+                        long start = System.nanoTime();
+                        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+                        process.waitFor();
+                        millis.add(Duration.ofNanos(System.nanoTime() - start).toMillis());
+                    } catch (Exception e) { throw new RuntimeException(e); }
+                }
+                Collections.sort(millis);
+                return millis.get(runs/2);
+            };
+
+            long without = medianMillis.apply(List.of());
+            long with = medianMillis.apply(List.of("-XX:SharedArchiveFile=" + archive));
+            System.out.format("Startup %s %s: %d ms without AppCDS, %d ms with AppCDS (median of %d)%n",
+                    runtime.getFileName(), launcher.name(), without, with, runs);
+        }
+
+        clearTrainingPrefs();
+    }
+
+    static void clearTrainingPrefs() {
+        try {
+            for (var node : List.of("ee-training", "ee-trainingclient"))
+                if (Preferences.userRoot().nodeExists(node)) Preferences.userRoot().node(node).removeNode();
+        } catch (Exception e) {}
+    }
+
     static void run(ToolProvider tool, String... args) {
         var out = new StringWriter();
         var err = new StringWriter();
@@ -456,8 +595,13 @@ public class Build {
         String filenameSources() { return "%s-%s-sources.jar".formatted(artifactId, version); }
     }
 
-    record Stockfish(Platform osArch, String filename, boolean downloadable) {
+    record Launcher(String name, String main, List<String> trainingArgs) {
+        String archiveName() { return name + ".jsa"; }
+    }
+
+    record Stockfish(Platform osArch, String level, String filename, boolean downloadable) {
         URI uri() { return URI.create("https://stockfishchess.org/files/" + filename); }
+        String embeddedName() { return "stockfish-" + level + ".zip"; }
     }
 
     record Platform(String os, String arch) {
@@ -0,0 +1,261 @@
+package ee;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import chariot.model.ExternalEngineWork;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "ee-bench", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+        subcommands = { Bench.Forwarding.class, Bench.Keys.class, Bench.SplitMultiPv.class })
+class Bench implements Runnable {
+
+    public void run() {
+        CommandLine.usage(this, System.out);
+    }
+
+    @Command(name = "forwarding", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+            description = "Compares forwarding engine output as Strings with forwarding it as bytes")
+    static class Forwarding implements Runnable {
+
+        record Result(String name, long bytes, long lines, long nanos, long allocated, long collections) {
+            @Override
+            public String toString() {
+                return "%-8s %8.1f MB/s %8.1f bytes allocated/line %6d collections".formatted(
+                        name, bytes / (nanos / 1e9) / 1e6, allocated / (double) lines, collections);
+            }
+        }
+
+        public void run() {
+            var output = output();
+            System.out.println("Forwarding %d info lines (%d bytes), %d rounds".formatted(lines, output.length, rounds));
+
+            for (int i = 0; i < warmup; i++) {
+                strings(output);
+                bytes(output);
+            }
+            System.out.println(measure("strings", output, this::strings));
+            System.out.println(measure("bytes", output, this::bytes));
+        }
+
+        byte[] output() {
+            var sb = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                int depth = 1 + i % 40;
+                if (i % 4 == 0) sb.append("info depth %d currmove e2e4 currmovenumber 1\n".formatted(depth));
+                else sb.append("info depth %d seldepth %d multipv 1 score cp %d nodes %d nps 1450000 hashfull 12 tbhits 0 time %d pv e2e4 e7e5 g1f3 b8c6 f1b5 a7a6 b5a4 g8f6 e1g1 f8e7\n"
+                        .formatted(depth, depth + 4, 20 + i % 17, i * 1000L, i));
+            }
+            return sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        // The previous path, decode, split, concatenate and encode each line
+        void strings(byte[] output) {
+            var out = OutputStream.nullOutputStream();
+            try (var reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] arr = line.stripTrailing().split(" ", 2);
+                    var cmdAndParams = new Engine.CmdAndParams(arr[0], arr.length == 2 ? arr[1] : "");
+                    if (cmdAndParams.command().equals("info") && cmdAndParams.params().contains("score")) {
+                        out.write((cmdAndParams.command() + " " + cmdAndParams.params() + "\n").getBytes());
+                        out.flush();
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        // Read and forwarded on one thread here, the lines of a round are handed over unbounded
+        void bytes(byte[] output) {
+            var engine = new Engine();
+            engine.logger = System.getLogger("Bench");
+            engine.sink = OutputStream.nullOutputStream();
+            engine.engineOutput = new LinkedBlockingQueue<>();
+            try {
+                engine.pump(Channels.newChannel(new ByteArrayInputStream(output)));
+                Engine.CmdAndParams cmd;
+                while ((cmd = engine.engineOutput.poll()) != null)
+                    if (cmd.line() != null) engine.forward(cmd.line());
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        Result measure(String name, byte[] output, Consumer<byte[]> forward) {
+            var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().threadId();
+            long collections = collections();
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                forward.accept(output);
+            long nanos = System.nanoTime() - start;
+            return new Result(name, (long) output.length * rounds, (long) lines * rounds, nanos,
+                    threads.getThreadAllocatedBytes(thread) - allocated, collections() - collections);
+        }
+
+        static long collections() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .filter(count -> count > 0)
+                .sum();
+        }
+
+        @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+        @Option(names = {"--lines"}, defaultValue = "100000", description="Number of info lines per round") int lines;
+        @Option(names = {"--rounds"}, defaultValue = "50", description="Number of measured rounds") int rounds;
+        @Option(names = {"--warmup"}, defaultValue = "10", description="Number of warmup rounds") int warmup;
+    }
+
+    @Command(name = "keys", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+            description = "Measures position keys per second for move lists of increasing length")
+    static class Keys implements Runnable {
+
+        static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+        static final List<String> OPENING = List.of("e2e4", "e7e5", "g1f3", "b8c6", "f1b5", "a7a6", "b5a4", "g8f6", "e1g1", "f8e7");
+        static final List<String> SHUFFLE = List.of("f3g5", "f6g4", "g5f3", "g4f6");
+
+        public void run() {
+            for (int plies : List.of(10, 100, 300, 600)) {
+                var moves = new ArrayList<>(OPENING);
+                while (moves.size() < plies)
+                    moves.add(SHUFFLE.get((moves.size() - OPENING.size()) % SHUFFLE.size()));
+                var list = List.copyOf(moves.subList(0, plies));
+
+                long sink = 0;
+                for (int i = 0; i < warmup; i++)
+                    sink += Position.key("chess", START, list);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < keys; i++)
+                    sink += Position.key("chess", START, list);
+                long nanos = System.nanoTime() - start;
+
+                System.out.println("%4d plies %12.0f keys/s %8.2f us/key %016x".formatted(
+                            plies, keys / (nanos / 1e9), nanos / 1e3 / keys, sink));
+            }
+        }
+
+        @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+        @Option(names = {"--keys"}, defaultValue = "100000", description="Number of keys per move list length") int keys;
+        @Option(names = {"--warmup"}, defaultValue = "20000", description="Number of warmup keys") int warmup;
+    }
+
+    @Command(name = "split", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+            description = "Compares time to depth of multipv searches on one engine process with searches split over several")
+    static class SplitMultiPv implements Runnable {
+
+        static final List<String> POSITIONS = List.of(
+                Keys.START,
+                "r1bqkbnr/pppp1ppp/2n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R b KQkq - 3 3",
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                "2r3k1/pp3ppp/2n1b3/3p4/3P4/2PB1N2/P4PPP/R5K1 w - - 0 20",
+                "8/5pk1/6p1/3R4/7P/6P1/r4PK1/8 b - - 0 40");
+
+        // When all lines of the answer have reached each depth, from go
+        static class Depths extends OutputStream {
+            final int lines;
+            final int[] depths;
+            final long start = System.nanoTime();
+            final List<Long> millis = new ArrayList<>();
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            Depths(int lines) {
+                this.lines = lines;
+                depths = new int[lines];
+            }
+
+            @Override public void write(int b) { line.write(b); }
+            @Override public void write(byte[] b, int off, int len) { line.write(b, off, len); }
+
+            @Override
+            public void flush() {
+                var info = Split.Info.parse(line.toString(StandardCharsets.US_ASCII).strip());
+                line.reset();
+                if (info == null || info.multiPv() > lines) return;
+                depths[info.multiPv() - 1] = info.depth();
+                int completed = Arrays.stream(depths).min().orElse(0);
+                while (millis.size() < completed)
+                    millis.add((System.nanoTime() - start) / 1_000_000);
+            }
+
+            long at(int depth) {
+                return depth <= millis.size() ? millis.get(depth - 1) : -1;
+            }
+        }
+
+        public void run() {
+            var logger = System.getLogger("Bench");
+            var parameters = new Engine.Parameters(hash, threads * parts, depth, 300, List.of());
+            var single = Engine.init(engine, parameters, logger);
+            List<Engine> engines = new ArrayList<>();
+            for (int i = 0; i < parts; i++)
+                engines.add(Engine.init(engine, new Engine.Parameters(hash, threads, depth, 300, List.of()), logger));
+            long[] totals = new long[3];
+            try {
+                int n = 0;
+                for (var fen : fens.isEmpty() ? POSITIONS : fens) {
+                    var work = new ExternalEngineWork("bench-" + n++, threads, hash, false, multiPv, "chess", fen, List.of());
+                    var moves = Split.rootMoves(work);
+                    int lines = Math.min(multiPv, moves.size());
+                    if (lines == 0) continue;
+
+                    var one = new Depths(lines);
+                    single.analyse(work, depth, new AtomicBoolean(), one);
+                    var wide = new Depths(lines);
+                    single.analyse(new ExternalEngineWork("bench-" + n++, threads * parts, hash, false, multiPv, "chess", fen, List.of()),
+                            depth, new AtomicBoolean(), wide);
+                    var split = new Depths(lines);
+                    var used = engines.subList(0, Math.min(parts, moves.size()));
+                    new Split(new ExternalEngineWork("bench-" + n++, threads, hash, false, multiPv, "chess", fen, List.of()),
+                            used, moves, split).run(depth);
+
+                    System.out.println("%s, %d moves, %d lines".formatted(fen, moves.size(), lines));
+                    System.out.println("  depth  1 engine %2d threads  1 engine %2d threads  %d engines %2d threads".formatted(
+                                threads, threads * parts, used.size(), threads * used.size()));
+                    for (int d = 1; d <= depth; d++)
+                        if (d % 5 == 0 || d == depth)
+                            System.out.println("  %5d  %14d ms  %14d ms  %14d ms".formatted(d, one.at(d), wide.at(d), split.at(d)));
+                    totals[0] += one.at(depth);
+                    totals[1] += wide.at(depth);
+                    totals[2] += split.at(depth);
+                }
+                System.out.println("To depth %d: 1 engine %d ms, 1 engine with %d threads %d ms, split %d ms (%.2fx and %.2fx)".formatted(
+                            depth, totals[0], threads * parts, totals[1], totals[2],
+                            totals[0] / (double) Math.max(1, totals[2]), totals[1] / (double) Math.max(1, totals[2])));
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            } finally {
+                single.terminate();
+                engines.forEach(Engine::terminate);
+            }
+        }
+
+        @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+        @Option(names = {"--engine"}, defaultValue = "/usr/bin/stockfish", description="Shell command to launch UCI engine") String engine;
+        @Option(names = {"--depth"}, defaultValue = "20", description="Depth to search each position to") int depth;
+        @Option(names = {"--multipv"}, defaultValue = "5", description="Number of lines") int multiPv;
+        @Option(names = {"--parts"}, defaultValue = "5", description="Number of engine processes to split over") int parts;
+        @Option(names = {"--threads"}, defaultValue = "1", description="Threads of each engine process") int threads;
+        @Option(names = {"--hash"}, defaultValue = "64", description="Hash of each engine process in MiB") int hash;
+        @Option(names = {"--fen"}, description="Position to search, may be repeated, defaults to a few openings, middlegames and endgames") List<String> fens = new ArrayList<>();
+    }
+
+    @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+
+    public static void main(String[] args) throws Exception {
+        int exitCode = new picocli.CommandLine(new Bench()).execute(args);
+        System.exit(exitCode);
+    }
+}
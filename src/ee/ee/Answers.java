@@ -0,0 +1,63 @@
+package ee;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// The deepest lines recently answered for a position, so a new job for it gets them straight
+// away. A depth limited job which asks for no more is answered from them, any other job is
+// answered from them while its search catches up, from where the engine lines go deeper.
+// The least recently used positions make room for new ones.
+class Answers {
+
+    // The lines of each pv, the depth is the one all of them reached
+    record Answer(int depth, List<byte[]> lines) {
+        byte[] bytes() {
+            int length = 0;
+            for (var line : lines)
+                length += line.length;
+            var bytes = new byte[length];
+            int at = 0;
+            for (var line : lines) {
+                System.arraycopy(line, 0, bytes, at, line.length);
+                at += line.length;
+            }
+            return bytes;
+        }
+    }
+
+    final Map<Flight.Key, Answer> answers;
+    final LongAdder answered = new LongAdder();
+    final LongAdder seeded = new LongAdder();
+
+    Answers(int positions) {
+        answers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Flight.Key, Answer> eldest) {
+                return size() > positions;
+            }
+        };
+    }
+
+    // The lines answer a search of any depth, threads or hash
+    static Flight.Key key(Flight.Key key) {
+        return new Flight.Key(key.variant(), key.position(), key.text(), key.multiPv(), 0, 0, 0);
+    }
+
+    synchronized Answer get(Flight.Key key) {
+        return answers.get(key(key));
+    }
+
+    // Keeps the deeper answer
+    synchronized void put(Flight.Key key, Answer answer) {
+        if (answer == null || answer.lines().isEmpty()) return;
+        answers.merge(key(key), answer, (stored, deeper) -> deeper.depth() >= stored.depth() ? deeper : stored);
+    }
+
+    String report() {
+        int positions;
+        synchronized (this) {
+            positions = answers.size();
+        }
+        return "%d jobs answered and %d started from %d stored positions".formatted(answered.sum(), seeded.sum(), positions);
+    }
+}
@@ -0,0 +1,302 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+import chariot.model.ExternalEngineWork;
+import picocli.CommandLine;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+import picocli.CommandLine.Spec;
+
+@CommandLine.Command(name = "batch", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+        description = "Analyse the positions of an EPD or PGN file with the engine pool, without connecting to Lichess")
+class Batch implements Runnable {
+
+    // A position to analyse, positions of the same game share a session to keep the hash warm
+    record Item(int index, String variant, String initialFen, List<String> moves, String session, String fen) {}
+
+    // Keeps the last info line the engine wrote
+    static class LastLine extends OutputStream {
+        byte[] line = new byte[512];
+        int length;
+        String last = "";
+
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            if (length + len > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, length + len));
+            System.arraycopy(b, off, line, length, len);
+            length += len;
+        }
+
+        public void flush() {
+            last = new String(line, 0, length, StandardCharsets.US_ASCII).strip();
+            length = 0;
+        }
+
+        String value(String key) {
+            String[] arr = last.split(" ");
+            for (int i = 0; i < arr.length - 1; i++)
+                if (arr[i].equals(key)) return key.equals("score") ? arr[i + 1] + " " + arr[i + 2] : arr[i + 1];
+            return "";
+        }
+
+        String pv() {
+            int i = last.indexOf(" pv ");
+            return i == -1 ? "" : last.substring(i + 4);
+        }
+    }
+
+    static final Map<String, String> startPositions = Map.of(
+            "horde", "rnbqkbnr/pppppppp/8/1PP2PP1/PPPPPPPP/PPPPPPPP/PPPPPPPP/PPPPPPPP w kq - 0 1",
+            "racingkings", "8/8/8/8/8/8/krbnNBRK/qrbnNBRQ w - - 0 1",
+            "crazyhouse", "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR[] w KQkq - 0 1",
+            "3check", "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 3+3 0 1");
+    static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    static System.Logger logging = System.getLogger("Batch");
+
+    @ParentCommand CLI cli;
+    @Spec CommandSpec spec;
+
+    Pool pool;
+    int threads;
+    int hash;
+    LongAdder analysed = new LongAdder();
+    LongAdder failed = new LongAdder();
+    LongAdder nodes = new LongAdder();
+    LongAdder coreMillis = new LongAdder();
+
+    public void run() {
+        if (output == null) output = Path.of(input + ".tsv");
+        if (depth == null) depth = cli.defaultDepth;
+        if (parallel == null) parallel = cli.maxThreads();
+        var parameters = cli.parameters(parallel);
+
+        if (! cli.workers.isEmpty() && cli.workerSecret == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required option: '--worker-secret=<workerSecret>'");
+        }
+        pool = new Pool(Path.of(cli.enginecmd), parameters, parallel, cli.workerList(), logging);
+        pool.workerSecret = cli.workerSecret;
+        // Asking for the largest engine, each engine searches with as much as it has
+        var largest = pool.largestEngine();
+        threads = largest.maxThreads();
+        hash = largest.maxHash();
+        int capacity = pool.hosts.stream().mapToInt(host -> host.slots).sum();
+        if (capacity == 0) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "No engines to analyse with, --parallel is 0 and no worker is reachable or has slots");
+        }
+        if (inFlight == null) inFlight = 2 * capacity;
+        Runtime.getRuntime().addShutdownHook(new Thread(pool::terminateAll));
+
+        try {
+            var finished = checkpoint(output);
+            logging.log(Level.INFO, () -> "Analysing %s to depth %d with %d engines of up to %d threads, %d positions already in %s".formatted(
+                        input, depth, capacity, threads, finished.cardinality(), output));
+
+            var executor = Executors.newFixedThreadPool(capacity);
+            var permits = new Semaphore(inFlight);
+            var start = Instant.now();
+            try (var writer = Files.newBufferedWriter(output, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                read(input, item -> {
+                    if (finished.get(item.index())) return;
+                    permits.acquireUninterruptibly();
+                    executor.submit(() -> {
+                        try {
+                            write(writer, item, analyse(item));
+                        } catch (Exception e) {
+                            failed.increment();
+                            logging.log(Level.WARNING, () -> "Failed to analyse position %d [%s]: %s".formatted(item.index(), item.fen(), e.getMessage()));
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                });
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+
+            double seconds = Math.max(0.001, Duration.between(start, Instant.now()).toMillis() / 1000d);
+            long n = analysed.sum();
+            System.out.println("Analysed %d positions in %.1f s, %.2f positions/s, %d nodes, %.0f nps, %.0f nps per core (%d failed, %d from checkpoint)".formatted(
+                        n, seconds, n / seconds, nodes.sum(), nodes.sum() / seconds,
+                        nodes.sum() / Math.max(0.001, coreMillis.sum() / 1000d), failed.sum(), finished.cardinality()));
+            System.out.println("Local " + pool.stats.usage());
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.terminateAll();
+        }
+    }
+
+    LastLine analyse(Item item) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            var engine = pool.await(item.session());
+            try {
+                var last = new LastLine();
+                var work = new ExternalEngineWork(item.session(), threads, hash, false, 1, item.variant(), item.initialFen(), item.moves());
+                var search = engine.analyse(work, depth, new AtomicBoolean(), last);
+                var searchNodes = last.value("nodes");
+                nodes.add(searchNodes.isEmpty() ? 0 : Long.parseLong(searchNodes));
+                coreMillis.add(search.time().toMillis() * engine.threads);
+                return last;
+            } catch (IOException ioe) {
+                if (engine.alive || attempt == Scheduler.maxAttempts) throw ioe;
+            } finally {
+                pool.release(engine);
+            }
+        }
+    }
+
+    void write(BufferedWriter writer, Item item, LastLine last) throws IOException {
+        analysed.increment();
+        String line = String.join("\t", String.valueOf(item.index()), item.fen(),
+                last.value("depth"), last.value("score"), last.value("nodes"), last.value("nps"), last.value("time"), last.pv());
+        synchronized (writer) {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        }
+        if (analysed.sum() % 100 == 0)
+            logging.log(Level.INFO, () -> "Analysed %d positions".formatted(analysed.sum()));
+    }
+
+    // Results are written as they finish, in any order. On restart the complete lines
+    // are the checkpoint, and a line cut off by the interruption is removed.
+    static BitSet checkpoint(Path output) throws IOException {
+        var finished = new BitSet();
+        if (! Files.exists(output) || Files.size(output) == 0) return finished;
+        // Cut first, a line cut off within its pv still has all its fields
+        try (var file = new RandomAccessFile(output.toFile(), "rw")) {
+            long end = file.length();
+            while (end > 0) {
+                file.seek(end - 1);
+                if (file.read() == '\n') break;
+                end--;
+            }
+            file.setLength(end);
+        }
+        try (var lines = Files.lines(output)) {
+            lines.map(line -> line.split("\t", -1))
+                .filter(arr -> arr.length == 8 && arr[0].matches("\\d+"))
+                .forEach(arr -> finished.set(Integer.parseInt(arr[0])));
+        }
+        return finished;
+    }
+
+    void read(Path input, Consumer<Item> consumer) throws IOException {
+        try (var reader = Files.newBufferedReader(input)) {
+            if (input.toString().toLowerCase().endsWith(".pgn")) readPgn(reader, consumer);
+            else readEpd(reader, consumer);
+        }
+    }
+
+    // One position per line, EPD or FEN
+    void readEpd(BufferedReader reader, Consumer<Item> consumer) throws IOException {
+        int index = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.strip().split("\\s+");
+            if (fields.length < 4 || fields[0].startsWith("#")) continue;
+            String fen = String.join(" ", Arrays.copyOf(fields, 4));
+            fen += fields.length >= 6 && fields[4].matches("\\d+") && fields[5].matches("\\d+")
+                ? " " + fields[4] + " " + fields[5]
+                : " 0 1";
+            consumer.accept(new Item(index, variant, fen, List.of(), "batch-" + index, fen));
+            index++;
+        }
+    }
+
+    // Every position of every game, after each move
+    void readPgn(BufferedReader reader, Consumer<Item> consumer) throws IOException {
+        int index = 0;
+        int game = 0;
+        var tags = new HashMap<String, String>();
+        var movetext = new StringBuilder();
+        String line;
+        do {
+            line = reader.readLine();
+            boolean tag = line != null && line.startsWith("[");
+            if ((line == null || tag) && ! movetext.isEmpty()) {
+                index = game(tags, movetext.toString(), game++, index, consumer);
+                tags.clear();
+                movetext.setLength(0);
+            }
+            if (tag) {
+                int quote = line.indexOf('"');
+                if (quote != -1)
+                    tags.put(line.substring(1, quote).strip(), line.substring(quote + 1, line.lastIndexOf('"')));
+            } else if (line != null) {
+                movetext.append(line).append('\n');
+            }
+        } while (line != null);
+    }
+
+    int game(Map<String, String> tags, String movetext, int game, int index, Consumer<Item> consumer) {
+        String gameVariant = variant(tags.getOrDefault("Variant", ""));
+        String initialFen = tags.getOrDefault("FEN", startPositions.getOrDefault(gameVariant, START));
+        String session = "game-" + game;
+        try {
+            var position = new Position(gameVariant, initialFen);
+            var moves = new ArrayList<String>();
+            if (tags.containsKey("FEN"))
+                consumer.accept(new Item(index++, gameVariant, initialFen, List.of(), session, position.fen()));
+            for (var san : sanMoves(movetext)) {
+                var move = position.uci(san);
+                position.play(move);
+                moves.add(move);
+                consumer.accept(new Item(index++, gameVariant, initialFen, List.copyOf(moves), session, position.fen()));
+            }
+        } catch (RuntimeException e) {
+            logging.log(Level.WARNING, () -> "Skipping the rest of game %d: %s".formatted(game + 1, e.getMessage()));
+        }
+        return index;
+    }
+
+    static String variant(String tag) {
+        String name = tag.toLowerCase().replaceAll("[^a-z0-9]", "");
+        return switch (name) {
+            case "", "standard", "chess960", "fromposition" -> "chess";
+            case "threecheck" -> "3check";
+            default -> name;
+        };
+    }
+
+    // Drops comments, variations, annotations, move numbers and the result
+    static List<String> sanMoves(String movetext) {
+        var moves = new ArrayList<String>();
+        int variation = 0;
+        String text = movetext.replaceAll("\\{[^}]*\\}", " ").replaceAll(";[^\\n]*", " ");
+        for (var token : text.replace("(", " ( ").replace(")", " ) ").split("\\s+")) {
+            token = token.replaceFirst("^\\d+\\.+", "");
+            if (token.equals("(")) variation++;
+            else if (token.equals(")")) variation--;
+            else if (variation > 0 || token.isEmpty() || token.startsWith("$") || token.matches("1-0|0-1|1/2-1/2|\\*")) continue;
+            else moves.add(token);
+        }
+        return moves;
+    }
+
+    @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+    @Parameters(paramLabel = "file", description = "EPD or FEN file with one position per line, or a PGN file (.pgn) of which every position is analysed") Path input;
+    @Option(names = {"--output"}, description = "Tab separated results, index, FEN, depth, score, nodes, nps, time and pv. Also the checkpoint to resume from. Defaults to the input file with .tsv appended") Path output;
+    @Option(names = {"--depth"}, description = "Depth to analyse each position to, defaults to --default-depth") Integer depth;
+    @Option(names = {"--parallel"}, description = "Number of local engine processes sharing --max-threads and --max-hash, defaults to one per thread") Integer parallel;
+    @Option(names = {"--in-flight"}, description = "Maximum number of positions read ahead of the finished ones, defaults to twice the number of engines") Integer inFlight;
+    @Option(names = {"--variant"}, defaultValue = "chess", description = "Variant of the positions in an EPD file") String variant;
+}
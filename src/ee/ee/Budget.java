@@ -0,0 +1,112 @@
+package ee;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// The cpus and memory the engines may use. Read from cgroup v2 when running in a
+// container, as the limits of the JVM say nothing about the separate engine processes,
+// and from /proc/meminfo and the available processors otherwise.
+record Budget(int cpus, long memory, String source) {
+
+    static Path cgroupRoot = Path.of("/sys/fs/cgroup");
+    static Path procSelfCgroup = Path.of("/proc/self/cgroup");
+    static Path procMeminfo = Path.of("/proc/meminfo");
+
+    static final long MiB = 1024 * 1024;
+    // Left for the JVM besides its heap, and for each engine besides its hash (network, stacks, tables)
+    static final long JVM_OVERHEAD = 128 * MiB;
+    static final long ENGINE_OVERHEAD = 96 * MiB;
+    static final long MIN_HASH = 512 * MiB;
+
+    static Budget read() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        long limit = Long.MAX_VALUE;
+        var cgroups = cgroups();
+        if (! cgroups.isEmpty()) {
+            if (read(cgroups.get(0).resolve("cpuset.cpus.effective")) instanceof String cpuset && ! cpuset.isEmpty())
+                cpus = cpuCount(cpuset);
+            // Each ancestor may limit too, the tightest one applies
+            for (var dir : cgroups) {
+                if (read(dir.resolve("cpu.max")) instanceof String max && ! max.startsWith("max")) {
+                    var quotaPeriod = max.split(" ");
+                    long quota = Long.parseLong(quotaPeriod[0]);
+                    long period = quotaPeriod.length == 2 ? Long.parseLong(quotaPeriod[1]) : 100_000;
+                    cpus = (int) Math.min(cpus, Math.max(1, (quota + period - 1) / period));
+                }
+                if (read(dir.resolve("memory.max")) instanceof String max && ! max.equals("max"))
+                    limit = Math.min(limit, Long.parseLong(max));
+            }
+        }
+
+        var meminfo = meminfo();
+        long total = meminfo.getOrDefault("MemTotal", Runtime.getRuntime().maxMemory());
+        if (limit != Long.MAX_VALUE) {
+            return new Budget(Math.max(1, cpus), Math.min(limit, total), "cgroup");
+        }
+        // Without a container limit the engines share the host with everything else
+        long available = meminfo.getOrDefault("MemAvailable", total);
+        return new Budget(Math.max(1, cpus), available / 2, "host");
+    }
+
+    // Total hash in MiB for the given number of local engines, rounded down to a power of two.
+    // The JVM counts with the heap it has taken, not the ceiling it could grow to, which is a
+    // quarter of the machine by default. Never below 512 MiB unless the budget is that small.
+    int hash(int engines) {
+        long jvm = Runtime.getRuntime().totalMemory() + JVM_OVERHEAD;
+        long free = memory - jvm - engines * ENGINE_OVERHEAD;
+        long mb = Math.min(Integer.MAX_VALUE, Math.max(free, Math.min(MIN_HASH, memory / 2)) / MiB);
+        return (int) Math.max(16, Long.highestOneBit(Math.max(1, mb)));
+    }
+
+    @Override
+    public String toString() {
+        return "%d cpus and %d MiB memory (%s)".formatted(cpus, memory / MiB, source);
+    }
+
+    // The cgroup of this process first, followed by its ancestors
+    static List<Path> cgroups() {
+        if (! Files.exists(cgroupRoot.resolve("cgroup.controllers"))) return List.of();
+        String path = "/";
+        try {
+            for (var line : Files.readAllLines(procSelfCgroup))
+                if (line.startsWith("0::")) path = line.substring(3);
+        } catch (IOException ioe) {}
+        var dir = cgroupRoot.resolve(path.substring(1)).normalize();
+        if (! dir.startsWith(cgroupRoot) || ! Files.isDirectory(dir)) dir = cgroupRoot;
+
+        var dirs = new ArrayList<Path>();
+        for (; dir != null && dir.startsWith(cgroupRoot); dir = dir.getParent())
+            dirs.add(dir);
+        return dirs;
+    }
+
+    static Map<String, Long> meminfo() {
+        var map = new HashMap<String, Long>();
+        try {
+            for (var line : Files.readAllLines(procMeminfo)) {
+                var arr = line.split(":? +");
+                if (arr.length >= 2) map.put(arr[0], Long.parseLong(arr[1]) * 1024);
+            }
+        } catch (IOException | NumberFormatException e) {}
+        return map;
+    }
+
+    // "0-3,6,8-9" is 7 cpus
+    static int cpuCount(String cpuset) {
+        int count = 0;
+        for (var range : cpuset.split(",")) {
+            var fromTo = range.strip().split("-");
+            count += fromTo.length == 2 ? Integer.parseInt(fromTo[1]) - Integer.parseInt(fromTo[0]) + 1 : 1;
+        }
+        return count;
+    }
+
+    static String read(Path file) {
+        try {
+            return Files.readString(file).strip();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+}
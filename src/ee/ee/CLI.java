@@ -1,39 +1,141 @@
 package ee;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.stream.Collectors;
 
+import chariot.api.ExternalEngineAuth;
 import ee.Engine.Parameters;
 import picocli.CommandLine;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
 
-@CommandLine.Command(name = "ee-cli", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true)
+@CommandLine.Command(name = "ee-cli", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+        subcommands = { Batch.class, Replay.class })
 class CLI implements Runnable {
 
+    @Spec CommandSpec spec;
+
     public void run() {
+        // Only required when serving Lichess, not for the batch subcommand
+        if (token == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required option: '--token=<token>'");
+        }
+        if (! workers.isEmpty() && workerSecret == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required option: '--worker-secret=<workerSecret>'");
+        }
+
+        var api = externalEngine(token);
+
+        List<Main.Registration> registrationList = new ArrayList<>();
+        if (registrations.isEmpty()) {
+            String secret = providerSecret != null ? providerSecret : UUID.randomUUID().toString();
+            registrationList.add(new Main.Registration(name, api, secret, null, defaultDepth, List.of(), 1));
+        } else {
+            for (var registration : registrations) {
+                var props = Arrays.stream(registration.split(","))
+                    .filter(s -> s.contains("="))
+                    .map(s -> s.split("=", 2))
+                    .collect(Collectors.toMap(kv -> kv[0].strip(), kv -> kv[1].strip()));
+                registrationList.add(new Main.Registration(
+                            props.getOrDefault("name", name),
+                            props.containsKey("token") ? externalEngine(props.get("token")) : api,
+                            props.getOrDefault("secret", UUID.randomUUID().toString()),
+                            null,
+                            Integer.parseInt(props.getOrDefault("depth", String.valueOf(defaultDepth))),
+                            props.containsKey("variants") ? List.of(props.get("variants").split("\\+")) : List.of(),
+                            Math.max(1, Integer.parseInt(props.getOrDefault("weight", "1")))));
+            }
+        }
+
+        int size = poolSize == null ? registrationList.size() : poolSize;
+        var main = new Main(Path.of(enginecmd), parameters(size), size, workerList(),
+                policy(), registrationList);
+        main.pool.autoSize(autoThreads, autoHash);
+        main.pool.workerSecret = workerSecret;
+        main.scheduler.tablebase = tablebase();
+        main.scheduler.answers = answers();
+        if (Main.training) return;
+        if (record != null) {
+            try {
+                main.trace = new Trace(record);
+            } catch (IOException ioe) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Failed to create trace %s: %s".formatted(record, ioe.getMessage()));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { main.trace.close(); } catch (IOException ioe) {}
+            }));
+        }
+        main.run();
+    }
+
+    int maxThreads() {
         if (maxThreads == null) {
-            maxThreads = Runtime.getRuntime().availableProcessors();
+            autoThreads = true;
+            maxThreads = budget().cpus();
         }
+        return maxThreads;
+    }
 
-        var parameters = new Parameters(maxHash, maxThreads, defaultDepth, keepAlive, options);
+    // The hash is budgeted for the number of local engines sharing it, each of them has its overhead
+    Parameters parameters(int engines) {
+        maxThreads();
+        if (maxHash == null) {
+            autoHash = true;
+            maxHash = budget().hash(Math.max(1, engines));
+        }
+        return new Parameters(maxHash, maxThreads, defaultDepth, keepAlive, options);
+    }
 
-        var client = chariot.Client.auth(c -> c
-                .api(lichessUrl)
-                .servers(s -> s.engine(brokerUrl))
-                .auth(token));
+    Budget budget() {
+        if (budget == null) budget = Budget.read();
+        return budget;
+    }
 
-        String secret = providerSecret != null ? providerSecret : UUID.randomUUID().toString();
+    Budget budget;
+    boolean autoThreads;
+    boolean autoHash;
 
-        var main = new Main(Path.of(enginecmd), name, parameters, client.externalEngine(), secret, null);
-        main.run();
+    Scheduler.Policy policy() {
+        return new Scheduler.Policy(Duration.ofMillis(minSlice), Duration.ofMillis(minInfiniteSlice), maxQueue, Duration.ofSeconds(maxInfiniteTime), Duration.ofSeconds(maxDepthTime), splitMultiPv);
+    }
+
+    Syzygy tablebase() {
+        if (syzygyPath.isEmpty()) return null;
+        try {
+            return new Syzygy(syzygyPath);
+        } catch (IOException ioe) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Failed to read tablebases in %s: %s".formatted(syzygyPath, ioe.getMessage()));
+        }
+    }
+
+    Answers answers() {
+        return storedAnswers > 0 ? new Answers(storedAnswers) : null;
+    }
+
+    List<InetSocketAddress> workerList() {
+        return workers.stream()
+            .map(worker -> worker.split(":"))
+            .map(arr -> new InetSocketAddress(arr[0], arr.length == 2 ? Integer.parseInt(arr[1]) : 9670))
+            .toList();
+    }
+
+    ExternalEngineAuth externalEngine(String token) {
+        return chariot.Client.auth(c -> c
+                .api(lichessUrl)
+                .servers(s -> s.engine(brokerUrl))
+                .auth(token)).externalEngine();
     }
 
     @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
     @Option(names = {"--token"},
             showDefaultValue = CommandLine.Help.Visibility.NEVER,
             defaultValue = "${env:LICHESS_API_TOKEN}",
-            description="API token with engine:read and engine:write scopes. May be set by environment variable LICHESS_API_TOKEN.",
-            required = true)
+            description="API token with engine:read and engine:write scopes. May be set by environment variable LICHESS_API_TOKEN.")
     String token;
 
     @Option(names = {"--provider-secret"},
@@ -45,10 +147,29 @@ class CLI implements Runnable {
     @Option(names = {"--name"}, defaultValue = "Alpha 2", description = "Engine name to register") String name;
     @Option(names = {"--engine"}, defaultValue = "/usr/bin/stockfish", description="Shell command to launch UCI engine") String enginecmd;
     @Option(names = {"--default-depth"}, defaultValue = "25", description="Default engine seek depth") int defaultDepth;
-    @Option(names = {"--max-threads"}, description="Maximum number of available threads") Integer maxThreads;
-    @Option(names = {"--max-hash"}, defaultValue = "512", description="Maximum hash table size in MiB") int maxHash;
+    @Option(names = {"--max-threads"}, description="Maximum number of available threads, defaults to the cpu limit of the container (cgroup v2) or the available processors, following changes at runtime") Integer maxThreads;
+    @Option(names = {"--max-hash"}, description="Maximum hash table size in MiB, defaults to what the memory limit of the container (cgroup v2) or the available memory leaves for the engines, following changes at runtime") Integer maxHash;
     @Option(names = {"--setoption"}, arity = "2", description="Set a custom UCI option", parameterConsumer = UCIOptionConsumer.class, paramLabel = "string") List<Engine.UciOption> options = new ArrayList<>();
     @Option(names = {"--keep-alive"}, defaultValue = "300", description="Number of seconds to keep an idle/unused engine process around") int keepAlive;
+    @Option(names = {"--pool-size"}, description="Number of local engine processes sharing the threads and hash, defaults to the number of registrations. May be 0 when using workers") Integer poolSize;
+    @Option(names = {"--worker"}, paramLabel = "host[:port]", description="Remote ee-worker to run engines on, in addition to the local engine processes") List<String> workers = new ArrayList<>();
+    @Option(names = {"--worker-secret"},
+            showDefaultValue = CommandLine.Help.Visibility.NEVER,
+            defaultValue = "${env:EE_WORKER_SECRET}",
+            description="Secret the workers were started with. May be set by environment variable EE_WORKER_SECRET.")
+    String workerSecret;
+    @Option(names = {"--registration"},
+            paramLabel = "key=value,...",
+            description="Register an additional engine profile served from the shared engine pool. Keys: name, depth, variants (separated by +), weight, secret, token") List<String> registrations = new ArrayList<>();
+    @Option(names = {"--min-slice"}, defaultValue = "3000", description="Milliseconds a running job gets before it may be preempted by a waiting job") long minSlice;
+    @Option(names = {"--min-infinite-slice"}, defaultValue = "60000", description="Milliseconds a running infinite job gets before it may be preempted by a waiting infinite job") long minInfiniteSlice;
+    @Option(names = {"--max-queue"}, defaultValue = "64", description="Maximum number of waiting jobs, further jobs are rejected") int maxQueue;
+    @Option(names = {"--max-infinite-time"}, defaultValue = "0", description="Seconds an infinite search may run before it is stopped, 0 for no limit") long maxInfiniteTime;
+    @Option(names = {"--max-depth-time"}, defaultValue = "0", description="Seconds a depth limited search may run before it is stopped with the answer so far, 0 for no limit") long maxDepthTime;
+    @Option(names = {"--split-multipv"}, description="Search the root moves of multipv jobs on idle engine processes in parallel, each with some of the moves") boolean splitMultiPv;
+    @Option(names = {"--syzygy-path"}, paramLabel = "dir", description="Directory with Syzygy tablebases, may be repeated. Endgames within the tables are answered from them without the engine") List<Path> syzygyPath = new ArrayList<>();
+    @Option(names = {"--stored-answers"}, defaultValue = "0", description="Number of positions to keep the deepest answer of. New jobs for them get it straight away while the search goes deeper, 0 to disable") int storedAnswers;
+    @Option(names = {"--record"}, paramLabel = "file", description="Record an anonymised trace of the acquired work, for the replay subcommand. Compressed if the name ends with .gz") Path record;
     @Option(names = {"--lichess"}, defaultValue = "https://lichess.org", description="Lichess endpoint", required = true) String lichessUrl;
     @Option(names = {"--broker"}, defaultValue = "https://engine.lichess.ovh", description="Broker endpoint", required = true) String brokerUrl;
 
@@ -4,10 +4,12 @@ import java.io.*;
 import java.lang.System.Logger.Level;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 import java.util.stream.Collectors;
 
 import chariot.Client;
+import chariot.model.ExternalEngineWork;
 import ee.Engine.Parameters;
 
 record Config(String providerUuid, String engineId, EngineConf engineConf, Client client, boolean light) {
@@ -16,6 +18,11 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
     static Path builtInExecutable = null;
 
     static Config init() {
+        return init(EngineConf.load());
+    }
+
+    // Without looking for an engine, which may start several, for a caller that loads it later
+    static Config init(EngineConf engineConf) {
         var prefs = prefs();
 
         String providerUuid = prefs.get("providerUuid", null);
@@ -27,11 +34,15 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
         String engineId = prefs.get("engineId", null);
         boolean light = prefs.getBoolean("light", false);
 
-        var config = new Config(providerUuid, engineId, EngineConf.load(), Client.load(clientPrefs()), light);
+        var config = new Config(providerUuid, engineId, engineConf, Client.load(clientPrefs()), light);
 
         return config;
     }
 
+    Config withEngineConf(EngineConf engineConf) {
+        return new Config(providerUuid, engineId, engineConf, client, light);
+    }
+
     static void storeEngineId(String id) {
         var prefs = prefs();
         prefs.put("engineId", id);
@@ -88,7 +99,7 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
 
             return new Parameters(
                     prefs.getInt("maxHash", defaultMaxHashMB()),
-                    prefs.getInt("maxThreads", Runtime.getRuntime().availableProcessors()),
+                    prefs.getInt("maxThreads", Budget.read().cpus()),
                     prefs.getInt("defaultDepth", 25),
                     prefs.getInt("keepAlive", 60),
                     options
@@ -96,9 +107,7 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
         }
 
         static int defaultMaxHashMB() {
-            int maxMB = (int) (Runtime.getRuntime().maxMemory()/1024/1024/2);
-            int roundedMaxMB = (int) Math.pow(2, Math.ceil(Math.log(maxMB) / Math.log(2)));
-            return Math.max(512, roundedMaxMB);
+            return Budget.read().hash(1);
         }
 
         static void store(EngineConf engineConf) {
@@ -134,14 +143,14 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
             String name = prefs.get("name", "External Engine");
             var parameters = EngineConf.loadParameters();
 
-            InputStream builtInInputStream = null;
-
-            // Check if built-in exists
+            // Check which built-in builds exist, fastest first
+            List<String> builtIns = new ArrayList<>();
             if (builtInExecutable == null) {
-                try {
-                    builtInInputStream = Config.class.getModule().getResourceAsStream("stockfish.zip");
-                } catch (IOException ioe) {}
+                for (var resource : Cpu.levels().stream().map(level -> "stockfish-" + level + ".zip").toList())
+                    if (exists(resource)) builtIns.add(resource);
+                if (exists("stockfish.zip")) builtIns.add("stockfish.zip");
             }
+            boolean builtInAvailable = builtInExecutable != null || ! builtIns.isEmpty();
 
             // Check custom
             String customExecutable = prefs.get("customExecutable", null);
@@ -151,38 +160,7 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
                     var engine = Engine.init(engineExecutable.toString(), parameters, logger);
                     var supportedVariants = engine.supportedVariants();
                     engine.terminate();
-                    return new Custom(name, engineExecutable, parameters, supportedVariants, builtInExecutable != null || builtInInputStream != null);
-                }
-            }
-
-            if (builtInExecutable == null) {
-                try {
-                    if (builtInInputStream != null) {
-                        Path tempZip = Files.createTempFile("ee-stockfish-", ".zip");
-                        Path engineExecutable = Files.createTempFile("ee-stockfish-", ".bin");
-                        var os = java.nio.file.Files.newOutputStream(tempZip);
-                        builtInInputStream.transferTo(os);
-                        tempZip.toFile().deleteOnExit();
-                        engineExecutable.toFile().deleteOnExit();
-                        try (var fs = FileSystems.newFileSystem(tempZip)) {
-                            var rootIter = fs.getRootDirectories().iterator();
-                            var path = rootIter.next();
-                            try (var stream = Files.walk(path, 2)) {
-                                var list = stream.filter(p -> p.getFileName() != null)
-                                    .filter(p -> p.getFileName().toString().startsWith("stockfish"))
-                                    .filter(p -> ! p.getFileName().toString().endsWith("_src"))
-                                    .toList();
-                                if (! list.isEmpty()) {
-                                    Files.copy(list.get(list.size()-1), engineExecutable, StandardCopyOption.REPLACE_EXISTING);
-                                    engineExecutable.toFile().setExecutable(true);
-                                    builtInExecutable = engineExecutable;
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    builtInExecutable = null;
-                    logger.log(Level.ERROR, "Failed to extract built-in engine", e);
+                    return new Custom(name, engineExecutable, parameters, supportedVariants, builtInAvailable);
                 }
             }
 
@@ -193,6 +171,25 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
                 return new BuiltIn(name, builtInExecutable, parameters, supportedVariants);
             }
 
+            // A build the cpu can't run dies on its first search, so probe before settling on one
+            for (var resource : builtIns) {
+                Engine engine = null;
+                try (var in = resource(resource)) {
+                    var engineExecutable = extract(in);
+                    engine = Engine.init(engineExecutable.toString(), parameters, logger);
+                    engine.analyse(new ExternalEngineWork("probe", 1, 16, false, 1, "chess", Batch.START, List.of()),
+                            1, new AtomicBoolean(), OutputStream.nullOutputStream());
+                    var supportedVariants = engine.supportedVariants();
+                    builtInExecutable = engineExecutable;
+                    logger.log(Level.INFO, () -> "Using built-in %s (cpu supports %s)".formatted(resource, Cpu.levels()));
+                    return new BuiltIn(name, engineExecutable, parameters, supportedVariants);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, () -> "Built-in %s failed to start, trying next (%s)".formatted(resource, e.getMessage()));
+                } finally {
+                    if (engine != null) engine.terminate();
+                }
+            }
+
             // Check PATH -> custom
             String PATH = System.getenv("PATH");
             if (PATH != null) {
@@ -217,7 +214,7 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
                         var engine = Engine.init(engineExecutable.toString(), parameters, logger);
                         var supportedVariants = engine.supportedVariants();
                         engine.terminate();
-                        var custom = new Custom(name, engineExecutable, parameters, supportedVariants, builtInExecutable != null || builtInInputStream != null);
+                        var custom = new Custom(name, engineExecutable, parameters, supportedVariants, builtInAvailable);
                         store(custom);
                         return custom;
                     } catch (Exception e) { }
@@ -226,5 +223,45 @@ record Config(String providerUuid, String engineId, EngineConf engineConf, Clien
 
             return new None();
         }
+
+        static InputStream resource(String name) {
+            try {
+                return Config.class.getModule().getResourceAsStream(name);
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+
+        static boolean exists(String name) {
+            try (var in = resource(name)) {
+                return in != null;
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        static Path extract(InputStream builtInInputStream) throws IOException {
+            Path tempZip = Files.createTempFile("ee-stockfish-", ".zip");
+            Path engineExecutable = Files.createTempFile("ee-stockfish-", ".bin");
+            try (var os = Files.newOutputStream(tempZip)) {
+                builtInInputStream.transferTo(os);
+            }
+            tempZip.toFile().deleteOnExit();
+            engineExecutable.toFile().deleteOnExit();
+            try (var fs = FileSystems.newFileSystem(tempZip)) {
+                var rootIter = fs.getRootDirectories().iterator();
+                var path = rootIter.next();
+                try (var stream = Files.walk(path, 2)) {
+                    var list = stream.filter(p -> p.getFileName() != null)
+                        .filter(p -> p.getFileName().toString().startsWith("stockfish"))
+                        .filter(p -> ! p.getFileName().toString().endsWith("_src"))
+                        .toList();
+                    if (list.isEmpty()) throw new IOException("No stockfish executable in archive");
+                    Files.copy(list.get(list.size()-1), engineExecutable, StandardCopyOption.REPLACE_EXISTING);
+                    engineExecutable.toFile().setExecutable(true);
+                }
+            }
+            return engineExecutable;
+        }
     }
 }
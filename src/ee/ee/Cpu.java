@@ -0,0 +1,55 @@
+package ee;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// The levels Stockfish is built for, from the fastest to the most compatible. Where
+// /proc/cpuinfo can be read the levels are filtered by its flags, otherwise a build
+// which fails to start falls back to the next level.
+class Cpu {
+
+    record Level(String name, String arch, Set<String> flags) {}
+
+    static final List<Level> LEVELS = List.of(
+            new Level("vnni512", "x64", Set.of("avx512vnni", "avx512dq", "avx512f", "avx512bw", "avx512vl", "bmi2")),
+            new Level("avx512", "x64", Set.of("avx512f", "avx512bw", "bmi2")),
+            new Level("bmi2", "x64", Set.of("bmi2", "avx2", "popcnt")),
+            new Level("avx2", "x64", Set.of("avx2", "popcnt", "sse4_1")),
+            new Level("modern", "x64", Set.of("popcnt", "sse4_1", "ssse3")),
+            new Level("x64", "x64", Set.of()),
+            new Level("apple-silicon", "aarch64", Set.of()));
+
+    static Path cpuinfo = Path.of("/proc/cpuinfo");
+
+    static List<String> levels() {
+        var arch = System.getProperty("os.arch", "").contains("aarch64") ? "aarch64" : "x64";
+        var info = cpuinfo();
+        var flags = info.containsKey("flags") ? Set.of(info.get("flags").split("\\s+")) : null;
+        // pext and pdep are microcoded and slow before Zen 3 (family 25)
+        var family = info.getOrDefault("cpu family", "25");
+        boolean slowPext = "AuthenticAMD".equals(info.get("vendor_id"))
+            && family.matches("\\d+")
+            && Integer.parseInt(family) < 25;
+
+        return LEVELS.stream()
+            .filter(level -> level.arch().equals(arch))
+            .filter(level -> flags == null || flags.containsAll(level.flags()))
+            .filter(level -> ! (slowPext && level.name().equals("bmi2")))
+            .map(Level::name)
+            .toList();
+    }
+
+    // The fields of the first processor
+    static Map<String, String> cpuinfo() {
+        var map = new HashMap<String, String>();
+        try {
+            for (var line : Files.readAllLines(cpuinfo)) {
+                if (line.isBlank()) break;
+                var kv = line.split(":", 2);
+                if (kv.length == 2) map.put(kv[0].strip(), kv[1].strip());
+            }
+        } catch (IOException ioe) {}
+        return map;
+    }
+}
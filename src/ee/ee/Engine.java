@@ -2,47 +2,105 @@ package ee;
 
 import java.io.*;
 import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.*;
 
 import chariot.model.ExternalEngineWork;
 
 public class Engine {
 
-    record CmdAndParams(String command, String params) {}
+    // A score line for the sink is kept as bytes, the other lines are decoded
+    record CmdAndParams(String command, String params, byte[] line) {
+        CmdAndParams(String command, String params) { this(command, params, null); }
+    }
+    static final CmdAndParams EOF = new CmdAndParams("", "");
     public record UciOption(String name, String value) {}
     public record Parameters(int maxHash, int maxThreads, int defaultDepth, int keepAlive, List<UciOption> options) {}
+    // Used is what the process took from the machine during the search, null when not local
+    record Search(boolean warm, int depth, Duration time, Instant go, Proc used) {}
+
+    static boolean pipelined = ! "false".equals(System.getProperty("ee.pipelined"));
+
+    static final int BUFFER_SIZE = 1 << 16;
+    static final byte[] INFO = "info ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] DEPTH = "info depth ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] SCORE = " score ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] NPS = " nps ".getBytes(StandardCharsets.US_ASCII);
 
     String session_id;
     int threads;
     int hash;
+    // Requests are clamped to these, lowered when the limits of the container shrink
+    volatile int max_threads;
+    volatile int max_hash;
+    // Extra UCI options, changed ones are set before the next search
+    volatile List<UciOption> options = List.of();
+    List<UciOption> applied_options = List.of();
     int multi_pv;
-    int default_depth;
     String uci_variant;
     List<String> supportedVariants = new ArrayList<>();
-    boolean alive;
-    Instant last_used;
+    volatile boolean alive;
+    boolean searching;
+    volatile Instant last_used;
+    volatile OutputStream sink;
+    volatile int reached;
+    volatile long go_nanos;
+    Stats stats = new Stats();
+    // The latest sample of the process, taken after each search
+    volatile Proc usage;
     Process process;
+    String id;
+    InputStream input;
+    BufferedWriter writer;
+    List<String> batch = new ArrayList<>();
     Lock lock;
     BlockingQueue<CmdAndParams> engineOutput = new ArrayBlockingQueue<>(4096);
     System.Logger logger;
 
-    private Engine() {}
+    Engine() {}
     public static Engine init(String cmd, Parameters parameters, System.Logger logger) {
         try {
             var engine = new Engine();
-            engine._init(cmd, parameters, logger);
+            engine._init(() -> engine.open(cmd), parameters, logger);
             return engine;
         } catch(IOException ioe) { throw new RuntimeException(ioe); }
     }
 
-    private void _init(String cmd, Parameters parameters, System.Logger logger) throws IOException {
+    interface Opener { void open() throws IOException; }
+
+    void open(String cmd) throws IOException {
+        process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        id = String.valueOf(process.pid());
+        input = process.getInputStream();
+        writer = process.outputWriter();
+    }
+
+    void close() {
+        process.destroy();
+    }
+
+    long pid() {
+        return process == null ? -1 : process.pid();
+    }
+
+    boolean control(String line) {
+        return false;
+    }
+
+    void _init(Opener opener, Parameters parameters, System.Logger logger) throws IOException {
         session_id = "";
         threads = parameters.maxThreads;
         hash = parameters.maxHash;
-        default_depth = parameters.defaultDepth;
+        max_threads = parameters.maxThreads;
+        max_hash = parameters.maxHash;
+        options = parameters.options;
+        applied_options = parameters.options;
         multi_pv = 1;
         uci_variant = "chess";
         alive = true;
@@ -50,36 +108,18 @@ public class Engine {
         lock = new ReentrantLock();
         this.logger = logger;
         try {
-            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            opener.open();
             Thread.ofPlatform().start(() -> {
                 try {
-                    while (true) {
-                        String line = process.inputReader().readLine();
-                        if (line == null) {
-                            terminate();
-                            return;
-                        }
-
-                        line = line.stripTrailing();
-                        if (line.isEmpty()) continue;
-
-                        String[] arr = line.split(" ", 2);
-
-                        var cmdAndParams = new CmdAndParams(arr[0], arr.length == 2 ? arr[1] : "");
-                        if (! "info".equals(arr[0]))
-                            logger.log(Level.DEBUG, () -> "%d >> %s".formatted(process.pid(), cmdAndParams));
-
-                        if (! engineOutput.offer(cmdAndParams)) {
-                            logger.log(Level.ERROR, "queue full!");
-                            terminate();
-                        }
-                    }
+                    pump(Channels.newChannel(input));
                 } catch (Exception e) {
-                    logger.log(Level.ERROR, "Failed to start engine", e);
+                    if (alive) logger.log(Level.ERROR, "Failed to read engine output", e);
                 }
+                terminate();
+                engineOutput.offer(EOF);
             });
         } catch (Exception ioe) {
-            logger.log(Level.ERROR, "Failed to read engine output", ioe);
+            logger.log(Level.ERROR, "Failed to start engine", ioe);
             throw new RuntimeException(ioe);
         }
 
@@ -92,6 +132,102 @@ public class Engine {
 
         for (var option : parameters.options)
             setoption(option.name(), option.value());
+        flush();
+    }
+
+    // Splits engine output into lines within one buffer for the life of the process. Info
+    // lines with a score are copied out of the buffer as they are, one array per line, other
+    // lines are decoded, both in order for recv(). The sink is written by the thread reading
+    // them, a slow sink never holds up this one.
+    void pump(ReadableByteChannel channel) throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] array = buffer.array();
+        int scanned = 0;
+        while (channel.read(buffer) != -1) {
+            int start = 0;
+            int end = buffer.position();
+            for (int i = scanned; i < end; i++) {
+                if (array[i] == '\n') {
+                    line(array, start, i);
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && end == array.length) {
+                line(array, 0, end);
+                start = end;
+            }
+            buffer.position(start).limit(end);
+            buffer.compact();
+            scanned = buffer.position();
+        }
+        if (buffer.position() > 0) line(array, 0, buffer.position());
+    }
+
+    void line(byte[] array, int from, int to) throws IOException {
+        while (to > from && array[to - 1] <= ' ') to--;
+        if (to == from) return;
+
+        if (startsWith(array, from, to, INFO)) {
+            last_used = Instant.now();
+            long go = go_nanos;
+            if (go != 0) {
+                go_nanos = 0;
+                stats.firstInfo(System.nanoTime() - go);
+            }
+            if (startsWith(array, from, to, DEPTH)) {
+                int depth = number(array, from + DEPTH.length, to);
+                reached = Math.max(reached, depth);
+                stats.depth = depth;
+            }
+            int nps = indexOf(array, from, to, NPS);
+            if (nps != -1) stats.nps = number(array, nps + NPS.length, to);
+            if (sink != null && indexOf(array, from, to, SCORE) != -1) {
+                var line = Arrays.copyOfRange(array, from, to + 1);
+                line[line.length - 1] = '\n';
+                offer(new CmdAndParams("info", null, line));
+            }
+            return;
+        }
+
+        String line = new String(array, from, to - from, StandardCharsets.UTF_8);
+        if (control(line)) return;
+
+        String[] arr = line.split(" ", 2);
+
+        var cmdAndParams = new CmdAndParams(arr[0], arr.length == 2 ? arr[1] : "");
+        logger.log(Level.DEBUG, () -> "%s >> %s".formatted(id, cmdAndParams));
+        offer(cmdAndParams);
+    }
+
+    void offer(CmdAndParams cmdAndParams) {
+        if (! engineOutput.offer(cmdAndParams)) {
+            logger.log(Level.ERROR, "queue full!");
+            terminate();
+        }
+    }
+
+    static boolean startsWith(byte[] array, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (array[from + i] != prefix[i]) return false;
+        return true;
+    }
+
+    static int indexOf(byte[] array, int from, int to, byte[] needle) {
+        outer:
+        for (int i = from; i <= to - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++)
+                if (array[i + j] != needle[j]) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    static int number(byte[] array, int from, int to) {
+        int number = 0;
+        for (int i = from; i < to && array[i] >= '0' && array[i] <= '9'; i++)
+            number = number * 10 + array[i] - '0';
+        return number;
     }
 
     public List<String> supportedVariants() {
@@ -104,31 +240,81 @@ public class Engine {
 
     public void terminate() {
         logger.log(Level.DEBUG, "Terminating");
-        process.destroy();
+        close();
         alive = false;
     }
 
     void send(String command) throws IOException {
-        logger.log(Level.DEBUG, () -> "%d << %s".formatted(process.pid(), command));
-        process.outputWriter().write(command);
-        process.outputWriter().newLine();
-        process.outputWriter().flush();
+        queue(command);
+        flush();
     }
 
+    // Commands are batched and written with a single flush, unless pipelining is disabled.
+    // The batch is shared with stop(), which comes from other threads.
+    void queue(String command) throws IOException {
+        logger.log(Level.DEBUG, () -> "%s << %s".formatted(id, command));
+        lock.lock();
+        try {
+            batch.add(command);
+            if (! pipelined) flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            if (batch.isEmpty()) return;
+            synchronized (writer) {
+                for (var command : batch) {
+                    writer.write(command);
+                    writer.newLine();
+                }
+                writer.flush();
+            }
+            batch.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Score lines are forwarded to the sink on the way, only the other lines are returned
     CmdAndParams recv() throws IOException {
         try {
-            return engineOutput.take();
+            while (true) {
+                var cmd = engineOutput.take();
+                if (cmd == EOF) {
+                    engineOutput.offer(EOF);
+                    throw new IOException("Engine %s terminated".formatted(id));
+                }
+                if (cmd.line() == null) return cmd;
+                forward(cmd.line());
+            }
         } catch (InterruptedException ie) {
             throw new RuntimeException(ie);
         }
     }
 
+    void forward(byte[] line) {
+        var out = sink;
+        if (out == null) return;
+        try {
+            out.write(line);
+            out.flush();
+        } catch (IOException ioe) {
+            logger.log(Level.INFO, () -> "[%s] Request body closed, stopping".formatted(session_id));
+            sink = null;
+            stop();
+        }
+    }
+
     void uci() throws IOException {
         send("uci");
         boolean done = false;
         while(!done)
             switch (recv()) {
-                case CmdAndParams(var command, var params) when command.equals("option") -> {
+                case CmdAndParams(var command, var params, var __) when command.equals("option") -> {
                     String name = "";
                     Iterator<String> iter = Arrays.stream(params.split(" ")).iterator();
                     while (iter.hasNext())
@@ -138,7 +324,7 @@ public class Engine {
                             default -> {}
                         }
                     }
-                case CmdAndParams(var command, var __) when command.equals("uciok") -> done = true;
+                case CmdAndParams(var command, var __, var ___) when command.equals("uciok") -> done = true;
                 default -> {}
             }
 
@@ -149,32 +335,40 @@ public class Engine {
     void isready() throws IOException {
         send("isready");
         while(switch(recv()) {
-            case CmdAndParams(var command, var __) when command.equals("readyok") -> false;
+            case CmdAndParams(var command, var __, var ___) when command.equals("readyok") -> false;
                 default -> true;
         }){}
     }
 
     void setoption(String name, String value) throws IOException {
-        send("setoption name %s value %s".formatted(name, value));
+        queue("setoption name %s value %s".formatted(name, value));
+    }
+
+    Search analyse(ExternalEngineWork work, int depth, AtomicBoolean cancelled, OutputStream out) throws IOException {
+        return analyse(work, depth, cancelled, out, List.of());
     }
 
-    InputStream analyse(ExternalEngineWork work, Semaphore job_started) throws IOException {
+    // With searchmoves only those root moves are searched
+    Search analyse(ExternalEngineWork work, int depth, AtomicBoolean cancelled, OutputStream out, List<String> searchmoves) throws IOException {
 
-        if (! session_id.equals(work.sessionId())) {
+        boolean warm = session_id.equals(work.sessionId());
+        if (! warm) {
             session_id = work.sessionId();
-            send("ucinewgame");
-            isready();
+            queue("ucinewgame");
+            if (! pipelined) isready();
         }
 
         boolean options_changed = false;
-        if (threads != work.threads()) {
-            setoption("Threads", String.valueOf(work.threads()));
-            threads = work.threads();
+        int work_threads = Math.max(1, Math.min(work.threads(), max_threads));
+        int work_hash = Math.max(1, Math.min(work.hash(), max_hash));
+        if (threads != work_threads) {
+            setoption("Threads", String.valueOf(work_threads));
+            threads = work_threads;
             options_changed = true;
         }
-        if (hash != work.hash()) {
-            setoption("Hash", String.valueOf(work.hash()));
-            hash = work.hash();
+        if (hash != work_hash) {
+            setoption("Hash", String.valueOf(work_hash));
+            hash = work_hash;
             options_changed = true;
         }
         if (multi_pv != work.multiPv()) {
@@ -187,69 +381,83 @@ public class Engine {
             uci_variant = work.variant();
             options_changed = true;
         }
+        var wanted_options = options;
+        if (! applied_options.equals(wanted_options)) {
+            for (var option : wanted_options)
+                if (! applied_options.contains(option)) setoption(option.name(), option.value());
+            applied_options = wanted_options;
+            options_changed = true;
+        }
 
-        if (options_changed) isready();
+        // UCI only asks for isready after ucinewgame, option changes are processed in order
+        if (pipelined ? ! warm : options_changed) isready();
 
         String position = "position fen %s moves %s".formatted(work.initialFen(), String.join(" ", work.moves()));
         logger.log(Level.DEBUG, "Analyzing position [%s]".formatted(position));
-        send(position);
-
-        if (work.infinite()) {
-            send("go infinite");
-        } else {
-            send("go depth %d".formatted(default_depth));
-        }
-
-        job_started.release();
-
-        var pipedOutputStream = new PipedOutputStream();
-        var pipedInputStream = new PipedInputStream(pipedOutputStream, 8192);
-
-        Thread.ofPlatform().name("engine-to-request-body").start(() -> {
-            try {
-                boolean responding = true;
-                logger.log(Level.INFO, () -> "[%s] Analyzing [%s]".formatted(session_id, position));
-                while(responding) {
-                    var cmd = recv();
-                    logger.log(Level.TRACE, () -> "[%s] - %s %s".formatted(session_id, cmd.command(), cmd.params()));
-
-                    responding = switch(cmd) {
-                        case CmdAndParams(var command, var params) when command.equals("bestmove") -> false;
-                        case CmdAndParams(var command, var params) when command.equals("info") -> {
-                            if (params.contains("score")) {
-                                String line = command + " " + params + "\n";
-                                logger.log(Level.DEBUG, () -> "[%s] Writing to request body: %s".formatted(session_id, line));
-                                pipedOutputStream.write(line.getBytes());
-                            }
-                            yield true;
-                        }
-                        default -> true;
-                    };
-                    pipedOutputStream.flush();
-                    last_used = Instant.now();
+
+        var started = Instant.now();
+        lock.lock();
+        try {
+            if (cancelled.get()) {
+                flush();
+                return new Search(warm, 0, Duration.ZERO, started, null);
+            }
+            queue(position);
+            String restrict = searchmoves.isEmpty() ? "" : " searchmoves " + String.join(" ", searchmoves);
+            if (work.infinite()) {
+                queue("go infinite" + restrict);
+            } else {
+                queue("go depth %d".formatted(depth) + restrict);
+            }
+            reached = 0;
+            sink = out;
+            go_nanos = System.nanoTime();
+            flush();
+            started = Instant.now();
+            searching = true;
+            stats.searching.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+
+        // Sampled once go is on its way, so reading /proc doesn't delay the search
+        var before = Proc.sample(pid());
+        try {
+            logger.log(Level.INFO, () -> "[%s] Analyzing [%s]".formatted(session_id, position));
+            while(switch(recv()) {
+                case CmdAndParams(var command, var __, var ___) when command.equals("bestmove") -> false;
+                default -> true;
+            }){}
+            last_used = Instant.now();
+            logger.log(Level.INFO, () -> "[%s] Finished analyzing".formatted(session_id));
+            var after = Proc.sample(pid());
+            Proc used = null;
+            if (after != null) {
+                usage = after;
+                if (before != null) {
+                    used = after.since(before);
+                    stats.usage(used, threads);
                 }
-                logger.log(Level.INFO, () -> "[%s] Finished analyzing".formatted(session_id));
-                pipedOutputStream.close();
-            } catch(IOException ioe) {
-                logger.log(Level.ERROR, ioe);
-            } finally {
-                stop();
             }
-        });
-        return pipedInputStream;
+            return new Search(warm, reached, Duration.between(started, Instant.now()), started, used);
+        } finally {
+            lock.lock();
+            sink = null;
+            go_nanos = 0;
+            searching = false;
+            stats.searching.decrementAndGet();
+            lock.unlock();
+        }
     }
 
     void stop() {
-        if (alive) {
-            lock.lock();
-            try {
-                send("stop");
-            } catch(IOException ioe) {
-                logger.log(Level.ERROR, "Failed to stop", ioe);
-            } finally {
-                lock.unlock();
-            }
+        lock.lock();
+        try {
+            if (alive && searching) send("stop");
+        } catch(IOException ioe) {
+            logger.log(Level.ERROR, "Failed to stop", ioe);
+        } finally {
+            lock.unlock();
         }
     }
 }
-
@@ -0,0 +1,232 @@
+package ee;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ee.Scheduler.Job;
+
+// One search shared by every job asking for the same analysis,
+// its info lines are fanned out to the answer of each job.
+class Flight extends OutputStream {
+
+    // Keyed by the final position, so transpositions share a search too.
+    // The text of the request is only kept when the position could not be played out.
+    // A job only gets the search of one which asked for the same threads and hash.
+    record Key(String variant, long position, String text, int multiPv, int depth, int threads, int hash) {
+        static Key of(Job job) {
+            var work = job.work();
+            long position = 0;
+            String text = "";
+            try {
+                position = Position.key(work.variant(), work.initialFen(), work.moves());
+            } catch (RuntimeException e) {
+                text = work.initialFen() + " moves " + String.join(" ", work.moves());
+            }
+            return new Key(work.variant(), position, text, work.multiPv(),
+                    work.infinite() ? 0 : job.registration.defaultDepth(), work.threads(), work.hash());
+        }
+    }
+
+    static class Subscriber {
+        final Job job;
+        final PipedInputStream in;
+        final PipedOutputStream out;
+        boolean stale;
+
+        Subscriber(Job job) throws IOException {
+            this.job = job;
+            in = new PipedInputStream(PIPE_SIZE);
+            out = new PipedOutputStream(in);
+        }
+
+        int room() throws IOException { return PIPE_SIZE - in.available(); }
+    }
+
+    static final int PIPE_SIZE = 8192;
+    static final byte[] MULTIPV = " multipv ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] DEPTH = " depth ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] LOWERBOUND = " lowerbound".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] UPPERBOUND = " upperbound".getBytes(StandardCharsets.US_ASCII);
+
+    final Key key;
+    final Job leader;
+    final List<Job> jobs = new ArrayList<>();
+    final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    final byte[][] latest;
+    final int[] lengths;
+    byte[] line = new byte[512];
+    int length;
+    boolean closed;
+    // Engine lines up to the depth of a stored answer add nothing to it
+    int floor;
+    final Stats stats;
+
+    Flight(Key key, Job leader, Stats stats) {
+        this.key = key;
+        this.leader = leader;
+        this.stats = stats;
+        jobs.add(leader);
+        latest = new byte[Math.max(1, key.multiPv())][];
+        lengths = new int[latest.length];
+    }
+
+    // A late joiner gets the latest line of each pv straight away
+    synchronized void subscribe(Subscriber subscriber) {
+        if (closed) {
+            close(subscriber);
+            return;
+        }
+        subscriber.stale = true;
+        subscribers.add(subscriber);
+        catchUp(subscriber);
+    }
+
+    // Starts from a stored answer, its jobs are answered before the search starts
+    synchronized void seed(Answers.Answer answer) {
+        for (var stored : answer.lines()) {
+            int pv = Math.min(latest.length, multiPv(stored, stored.length)) - 1;
+            latest[pv] = stored.clone();
+            lengths[pv] = stored.length;
+        }
+        floor = answer.depth();
+    }
+
+    synchronized boolean seeded() {
+        return floor > 0;
+    }
+
+    // The latest line of each pv, at the depth all of them reached
+    synchronized Answers.Answer answer() {
+        List<byte[]> lines = new ArrayList<>();
+        int depth = Integer.MAX_VALUE;
+        for (int i = 0; i < latest.length; i++) {
+            if (latest[i] == null) continue;
+            lines.add(Arrays.copyOf(latest[i], lengths[i]));
+            depth = Math.min(depth, depth(latest[i], lengths[i]));
+        }
+        return lines.isEmpty() || depth == 0 ? null : new Answers.Answer(depth, lines);
+    }
+
+    void unsubscribe(Job job) {
+        for (var subscriber : subscribers)
+            if (subscriber.job == job) {
+                subscribers.remove(subscriber);
+                close(subscriber);
+            }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (length + len > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, length + len));
+        System.arraycopy(b, off, line, length, len);
+        length += len;
+    }
+
+    // Called by the engine once per line. A subscriber whose answer is full skips lines,
+    // info lines supersede each other, and it is caught up once there is room again.
+    // A bound is passed on but not kept, as the latest lines are what a search is left with.
+    @Override
+    public synchronized void flush() throws IOException {
+        if (length == 0) return;
+        if (floor > 0 && depth(line, length) <= floor) {
+            length = 0;
+            if (subscribers.isEmpty()) throw new IOException("No subscribers left");
+            return;
+        }
+        byte[] forward;
+        int forwardLength;
+        if (bound(line, length)) {
+            forward = line;
+            forwardLength = length;
+        } else {
+            int pv = Math.min(latest.length, multiPv(line, length)) - 1;
+            var previous = latest[pv];
+            latest[pv] = line;
+            lengths[pv] = length;
+            line = previous != null ? previous : new byte[latest[pv].length];
+            forward = latest[pv];
+            forwardLength = lengths[pv];
+        }
+        length = 0;
+
+        for (var subscriber : subscribers) {
+            try {
+                if (subscriber.stale) {
+                    if (! catchUp(subscriber)) stats.skippedLines.increment();
+                } else if (subscriber.room() >= forwardLength) {
+                    subscriber.out.write(forward, 0, forwardLength);
+                    subscriber.out.flush();
+                } else {
+                    subscriber.stale = true;
+                    stats.skippedLines.increment();
+                }
+            } catch (IOException ioe) {
+                subscribers.remove(subscriber);
+                close(subscriber);
+            }
+        }
+        if (subscribers.isEmpty()) throw new IOException("No subscribers left");
+    }
+
+    boolean catchUp(Subscriber subscriber) {
+        try {
+            if (subscriber.room() < Arrays.stream(lengths).sum()) return false;
+            for (int i = 0; i < latest.length; i++)
+                if (latest[i] != null) subscriber.out.write(latest[i], 0, lengths[i]);
+            subscriber.out.flush();
+            subscriber.stale = false;
+            return true;
+        } catch (IOException ioe) {
+            subscribers.remove(subscriber);
+            close(subscriber);
+            return false;
+        }
+    }
+
+    // Stale subscribers wait for room for the final lines before their answer is closed
+    @Override
+    public void close() {
+        List<Subscriber> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = List.copyOf(subscribers);
+            subscribers.clear();
+        }
+        for (var subscriber : remaining) {
+            if (subscriber.stale) {
+                try {
+                    for (int i = 0; i < latest.length; i++)
+                        if (latest[i] != null) subscriber.out.write(latest[i], 0, lengths[i]);
+                } catch (IOException ioe) {}
+            }
+            close(subscriber);
+        }
+    }
+
+    static void close(Subscriber subscriber) {
+        try {
+            subscriber.out.close();
+        } catch (IOException ioe) {}
+    }
+
+    static boolean bound(byte[] line, int length) {
+        return Engine.indexOf(line, 0, length, LOWERBOUND) != -1 || Engine.indexOf(line, 0, length, UPPERBOUND) != -1;
+    }
+
+    static int depth(byte[] line, int length) {
+        int i = Engine.indexOf(line, 0, length, DEPTH);
+        return i == -1 ? 0 : Engine.number(line, i + DEPTH.length, length);
+    }
+
+    static int multiPv(byte[] line, int length) {
+        int i = Engine.indexOf(line, 0, length, MULTIPV);
+        return i == -1 ? 1 : Math.max(1, Engine.number(line, i + MULTIPV.length, length));
+    }
+}
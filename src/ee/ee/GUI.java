@@ -1,5 +1,7 @@
 package ee;
 
+import java.lang.System.Logger.Level;
+import java.time.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Supplier;
@@ -19,8 +21,19 @@ import ee.Engine.*;
 
 class GUI {
 
+    static System.Logger logging = System.getLogger("GUI");
+
     final JFrame frame;
-    final Config config;
+    final Stats stats = new Stats();
+    Config config;
+    volatile Main main;
+    JTabbedPane tabbed;
+    boolean discovering;
+    // Set on Exit and restart, an engine found afterwards is not started
+    volatile boolean closed;
+    String failure;
+    // Keeps posting to the event thread, which would keep the process alive after Exit
+    Timer refreshTimer;
 
     GUI(Config config) {
         this.config = config;
@@ -54,11 +67,12 @@ class GUI {
     }
 
     void run() {
-        var tabbed = new JTabbedPane();
+        tabbed = new JTabbedPane();
         tabbed.addTab("Engine", enginePanel());
+        tabbed.addTab("Performance", performancePanel(stats));
         tabbed.addTab("Lichess", lichessPanel());
         tabbed.addTab("About", aboutPanel());
-        tabbed.setSelectedIndex(config.client() instanceof ClientAuth auth ? 0 : 1);
+        tabbed.setSelectedIndex(config.client() instanceof ClientAuth auth ? 0 : 2);
         tabbed.setAlignmentX(Component.LEFT_ALIGNMENT);
 
         var panel = new JPanel();
@@ -72,7 +86,12 @@ class GUI {
 
         var bottomPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         var exit = new JButton("Exit");
-        exit.addActionListener(__ -> frame.dispose() );
+        exit.addActionListener(__ -> {
+            closed = true;
+            if (main != null) main.shutdown();
+            refreshTimer.stop();
+            frame.dispose();
+        });
         bottomPanel.add(exit);
 
         frame.getContentPane().setLayout(new BorderLayout());
@@ -84,29 +103,137 @@ class GUI {
 
         frame.pack();
 
+        if (Main.training) {
+            EngineConf.load();
+            frame.dispose();
+            System.exit(0);
+        }
+
         SwingUtilities.invokeLater(() -> {
             frame.setVisible(true);
+            logging.log(Level.INFO, () -> "Window shown %d ms after launch".formatted(sinceLaunch()));
+        });
+
+        if (discovering) {
+            Thread.ofPlatform().daemon().name("engine-discovery").start(this::discover);
+        }
+    }
+
+    // Looking for an engine may extract and probe several builds, so it is done after the
+    // window is shown. The Engine tab is filled in and the engine started once one is found.
+    void discover() {
+        long start = System.nanoTime();
+        var engineConf = EngineConf.load();
+        logging.log(Level.INFO, () -> "Found %s engine in %d ms".formatted(
+                    engineConf.getClass().getSimpleName(), (System.nanoTime() - start) / 1_000_000));
+
+        if (config.client()  instanceof ClientAuth chariot &&
+            engineConf       instanceof EngineConf.Some conf) {
+
+            var main = new Main(
+                    conf.engineExecutable(),
+                    conf.parameters(),
+                    1,
+                    List.of(),
+                    Scheduler.Policy.defaults(),
+                    List.of(registration(chariot, conf))
+                    );
+            main.pool.stats = stats;
+            this.main = main;
+            // Exit reads main after setting closed, so one of them stops it
+            if (closed) {
+                main.shutdown();
+                return;
+            }
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            config = config.withEngineConf(engineConf);
+            discovering = false;
+            tabbed.setComponentAt(0, enginePanel());
+            frame.pack();
+        });
+
+        if (main != null) {
+            Thread.ofPlatform().daemon().start(main);
+            try {
+                main.ready.await();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (main.failure instanceof RuntimeException e) {
+                var message = e.getMessage() == null ? e.toString() : e.getMessage();
+                logging.log(Level.ERROR, () -> "Failed to start the engine: %s".formatted(message));
+                main.shutdown();
+                SwingUtilities.invokeLater(() -> {
+                    failure = message;
+                    tabbed.setComponentAt(0, enginePanel());
+                    frame.pack();
+                });
+            } else {
+                logging.log(Level.INFO, () -> "Ready %d ms after launch".formatted(sinceLaunch()));
+            }
+        }
+    }
+
+    // The new window starts its own Main with the same secrets, so this one is stopped first
+    void restart() {
+        closed = true;
+        frame.setVisible(false);
+        refreshTimer.stop();
+        frame.dispose();
+        var previous = main;
+        Thread.ofPlatform().start(() -> {
+            if (previous != null) previous.shutdown();
+            GUI.init().run();
         });
+    }
 
-        if (config.client()     instanceof ClientAuth chariot &&
-            config.engineConf() instanceof EngineConf.Some conf) {
-
-            Thread.ofPlatform().daemon().start(
-                    new Main(
-                        conf.engineExecutable(),
-                        conf.name(),
-                        conf.parameters(),
-                        chariot.externalEngine(),
-                        config.providerUuid(),
-                        config.engineId()
-                        ));
+    static long sinceLaunch() {
+        return ProcessHandle.current().info().startInstant()
+            .map(launched -> Duration.between(launched, Instant.now()).toMillis())
+            .orElse(-1L);
+    }
+
+    Main.Registration registration(ClientAuth chariot, EngineConf.Some conf) {
+        return new Main.Registration(
+                conf.name(),
+                chariot.externalEngine(),
+                config.providerUuid(),
+                config.engineId(),
+                conf.parameters().defaultDepth(),
+                List.of(),
+                1);
+    }
+
+    // New settings for the running engine are applied to it, keeping its hash warm.
+    // Another engine executable needs a restart.
+    boolean apply(EngineConf engineConf) {
+        EngineConf updated = null;
+        if (engineConf instanceof EngineConf.BuiltIn builtIn &&
+            config.engineConf() instanceof EngineConf.BuiltIn current) {
+            updated = new EngineConf.BuiltIn(builtIn.name(), current.engineExecutable(), builtIn.parameters(), current.variants());
+        } else if (engineConf instanceof EngineConf.Custom custom &&
+            config.engineConf() instanceof EngineConf.Custom current &&
+            custom.engineExecutable().equals(current.engineExecutable())) {
+            updated = new EngineConf.Custom(custom.name(), custom.engineExecutable(), custom.parameters(), current.variants(), current.builtInAvailable());
         }
+
+        if (main == null || updated == null || ! (config.client() instanceof ClientAuth chariot)) return false;
+
+        config = new Config(config.providerUuid(), config.engineId(), updated, config.client(), config.light());
+        var registration = registration(chariot, (EngineConf.Some) updated);
+        var parameters = ((EngineConf.Some) updated).parameters();
+        Thread.ofPlatform().daemon().start(() -> main.reconfigure(parameters, List.of(registration)));
+        return true;
     }
 
     JPanel enginePanel() {
         var panel = new JPanel();
         List<LabeledField<?>> pairs = new ArrayList<>();
         pairs.add(LabeledField.ofTextField("Name", config.engineConf().name()));
+        if (discovering) pairs.add(LabeledField.ofTextField("Engine", "Looking for an engine..."));
+        if (failure != null) pairs.add(LabeledField.ofTextField("Status", "Failed to start: " + failure));
         pairs.addAll(switch(config.engineConf()) {
             case EngineConf.Custom custom -> {
                 var pair = LabeledField.ofTextField("Engine", custom.engineExecutable().getFileName().toString());
@@ -130,6 +257,7 @@ class GUI {
 
         var configure = new JButton("Configure...");
         configure.setFocusPainted(false);
+        configure.setEnabled(! discovering);
         var buttonPanel = new JPanel(new FlowLayout());
         buttonPanel.add(configure);
 
@@ -145,11 +273,14 @@ class GUI {
                     if (engineConf != null) {
                         done = true;
                         EngineConf.store(engineConf);
-                        SwingUtilities.invokeLater(() -> {
-                            frame.setVisible(false);
-                            frame.dispose();
-                            Thread.ofPlatform().start(() -> GUI.init().run());
-                        });
+                        if (apply(engineConf)) {
+                            SwingUtilities.invokeLater(() -> {
+                                tabbed.setComponentAt(0, enginePanel());
+                                frame.pack();
+                            });
+                        } else {
+                            SwingUtilities.invokeLater(this::restart);
+                        }
                     }
                 } else {
                     done = true;
@@ -161,6 +292,46 @@ class GUI {
         return panel;
     }
 
+    // Refreshed from a snapshot at a fixed rate on the EDT,
+    // so the engine output path never waits for the display.
+    JPanel performancePanel(Stats stats) {
+        var panel = new JPanel();
+        var nps = LabeledField.ofTextField("Nodes/s", "");
+        var depth = LabeledField.ofTextField("Depth", "");
+        var searching = LabeledField.ofTextField("Searching", "");
+        var jobs = LabeledField.ofTextField("Jobs served", "");
+        var firstInfo = LabeledField.ofTextField("First info (ms)", "");
+        var queue = LabeledField.ofTextField("Queue", "");
+        var backpressure = LabeledField.ofTextField("Backpressure", "");
+        var reclaimed = LabeledField.ofTextField("Stopped early", "");
+        var tablebase = LabeledField.ofTextField("Tablebase", "");
+        var cpu = LabeledField.ofTextField("Engine cpu", "");
+
+        Runnable refresh = () -> {
+            var snapshot = stats.snapshot();
+            boolean active = snapshot.searching() > 0;
+            nps.field().setText(active ? "%,d".formatted(snapshot.nps()) : "-");
+            depth.field().setText(active ? String.valueOf(snapshot.depth()) : "-");
+            searching.field().setText(active ? "%d engine(s)".formatted(snapshot.searching()) : "Idle");
+            jobs.field().setText("%,d".formatted(snapshot.jobs()));
+            firstInfo.field().setText("last %d, avg %d".formatted(snapshot.lastFirstInfoMillis(), snapshot.avgFirstInfoMillis()));
+            queue.field().setText("%d waiting, %d running".formatted(snapshot.queued(), snapshot.running()));
+            backpressure.field().setText("%d rejected, %d lines skipped".formatted(snapshot.rejected(), snapshot.skippedLines()));
+            reclaimed.field().setText("%d abandoned, %d at deadline, %d cpu s reclaimed".formatted(
+                        snapshot.abandoned(), snapshot.expired(), snapshot.reclaimedCpuSeconds()));
+            tablebase.field().setText("%d of %d probes answered, avg %d \u00b5s".formatted(
+                        snapshot.tablebaseHits(), snapshot.tablebaseProbes(), snapshot.avgTablebaseMicros()));
+            cpu.field().setText("%d%% busy, %d%% waiting for a cpu, %d involuntary context switches, %d major faults".formatted(
+                        snapshot.busyPercent(), snapshot.waitPercent(), snapshot.involuntarySwitches(), snapshot.majorFaults()));
+        };
+        refresh.run();
+        refreshTimer = new Timer(250, __ -> refresh.run());
+        refreshTimer.start();
+
+        layoutComponents(panel, List.of(nps, depth, searching, jobs, firstInfo, queue, backpressure, reclaimed, tablebase, cpu), new JPanel());
+        return panel;
+    }
+
     JPanel lichessPanel() {
         var lichessPanel = new JPanel();
         lichessPanel.setLayout(new BoxLayout(lichessPanel, BoxLayout.Y_AXIS));
@@ -180,8 +351,7 @@ class GUI {
                     frame.setVisible(false);
                     auth.account().revokeToken();
                     auth.clearAuth(Config.clientPrefs());
-                    frame.dispose();
-                    Thread.ofPlatform().start(() -> GUI.init().run());
+                    restart();
                 });
             });
             login.setEnabled(false);
@@ -227,11 +397,7 @@ class GUI {
                 Thread.ofPlatform().start(() -> {
                     var clientAuth = Client.load(Config.clientPrefs(), a -> a.auth(oauth.token().get()));
                     clientAuth.store(Config.clientPrefs());
-                    SwingUtilities.invokeLater(() -> {
-                        frame.setVisible(false);
-                        frame.dispose();
-                        Thread.ofPlatform().start(() -> GUI.init().run());
-                    });
+                    SwingUtilities.invokeLater(this::restart);
                 });
             });
             logout.setEnabled(false);
@@ -516,7 +682,8 @@ class GUI {
     }
 
     static GUI init() {
-        var config = Config.init();
-        return new GUI(config);
+        var gui = new GUI(Config.init(new EngineConf.None()));
+        gui.discovering = true;
+        return gui;
     }
 }
@@ -1,37 +1,55 @@
 package ee;
 
-import java.io.IOException;
 import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import chariot.api.ExternalEngineAuth;
 import chariot.model.*;
 import ee.Engine.Parameters;
 
 class Main implements Runnable {
+
+    record Registration(
+            String name,
+            ExternalEngineAuth api,
+            String secret,
+            String engineId,
+            int defaultDepth,
+            List<String> variants,
+            int weight) {}
+
     Path engineCmd;
-    String name;
     Parameters parameters;
-    Engine engine;
-    ExternalEngineAuth api;
-    String secret;
-    String engineId;
+    volatile List<Registration> registrations;
+    Pool pool;
+    Scheduler scheduler;
+    List<String> engineVariants;
+    Trace trace;
+    // What each registration last advertised and the id it got, by secret
+    Map<String, ExternalEngineRegistration> advertised = new HashMap<>();
+    Map<String, String> engineIds = new HashMap<>();
+    // Counted down once every registration is known to the broker and acquiring
+    final CountDownLatch ready = new CountDownLatch(1);
+    // Why it never got ready, counted down all the same
+    volatile RuntimeException failure;
+    List<Thread> acquiring = new CopyOnWriteArrayList<>();
+    volatile boolean stopped;
 
     static System.Logger logging = System.getLogger("Main");
+    static boolean training = Boolean.getBoolean("ee.training");
 
-    Main(Path engineCmd, String name, Parameters parameters, ExternalEngineAuth api, String secret, String engineId) {
+    Main(Path engineCmd, Parameters parameters, int poolSize, List<InetSocketAddress> workers, Scheduler.Policy policy, List<Registration> registrations) {
         this.engineCmd = engineCmd;
-        this.name = name;
         this.parameters = parameters;
-        this.api = api;
-        this.secret = secret;
-        this.engineId = engineId;
+        this.registrations = List.copyOf(registrations);
+        this.pool = new Pool(engineCmd, parameters, poolSize, workers, logging);
+        this.scheduler = new Scheduler(pool, policy, logging);
     }
 
-    <T> T ok(T res) {
+    static <T> T ok(T res) {
         if (res instanceof Fail<?> f) {
             logging.log(Level.ERROR, () -> "Response: %s".formatted(f));
             throw new RuntimeException(f.toString());
@@ -40,103 +58,161 @@ class Main implements Runnable {
         return res;
     }
 
-    public void register_engine(ExternalEngineAuth api, Engine engine, String secret) {
+    public synchronized void register_engine(Registration reg, List<String> engineVariants) {
+        var api = reg.api();
         var res = ok(api.list());
+        var registration = advertisement(reg, engineVariants);
 
-        var variants = List.of(
-                "chess",
-                "antichess",
-                "atomic",
-                "crazyhouse",
-                "horde",
-                "kingofthehill",
-                "racingkings",
-                "3check"
-                );
-
-        var supportedVariants = variants.stream().filter(engine.supportedVariants::contains).toList();
-        if (supportedVariants.isEmpty()) supportedVariants = List.of("chess");
-
-        var registration = new ExternalEngineRegistration(
-                name,
-                parameters.maxThreads(),
-                parameters.maxHash(),
-                parameters.defaultDepth(),
-                supportedVariants,
-                secret);
-
+        // A renamed engine is found by the id it got when it was registered
+        String engineId = reg.engineId() != null ? reg.engineId() : engineIds.get(reg.secret());
         if (engineId == null) {
-            res.stream().filter(e -> name.equals(e.name()))
+            res.stream().filter(e -> reg.name().equals(e.name()))
                 .map(ExternalEngineInfo::id)
                 .findAny()
                 .ifPresentOrElse(id -> {
                     logging.log(Level.INFO, () -> "Updating engine %s".formatted(id));
-                    ok(api.update(id, registration));
+                    registered(reg, ok(api.update(id, registration)));
                 },
                 () -> {
                     logging.log(Level.INFO, () -> "Registering new engine");
-                    ok(api.create(registration));
+                    registered(reg, ok(api.create(registration)));
                 });
         } else {
             res.stream().filter(e -> engineId.equals(e.id()))
                 .findAny()
                 .ifPresentOrElse(eei -> {
                     logging.log(Level.INFO, () -> "Updating engine %s".formatted(eei.id()));
-                    ok(api.update(eei.id(), registration));
+                    registered(reg, ok(api.update(eei.id(), registration)));
                 },
                 () -> {
                     logging.log(Level.INFO, () -> "Registering new engine");
-                    ok(api.create(registration));
+                    registered(reg, ok(api.create(registration)));
                 });
         }
+        advertised.put(reg.secret(), registration);
+    }
+
+    void registered(Registration reg, One<ExternalEngineInfo> res) {
+        if (res instanceof Entry<ExternalEngineInfo> one) engineIds.put(reg.secret(), one.entry().id());
+    }
+
+    ExternalEngineRegistration advertisement(Registration reg, List<String> engineVariants) {
+        var variants = List.of(
+                "chess",
+                "antichess",
+                "atomic",
+                "crazyhouse",
+                "horde",
+                "kingofthehill",
+                "racingkings",
+                "3check"
+                );
+
+        var supportedVariants = variants.stream()
+            .filter(engineVariants::contains)
+            .filter(variant -> reg.variants().isEmpty() || reg.variants().contains(variant))
+            .toList();
+        if (supportedVariants.isEmpty()) supportedVariants = List.of("chess");
+
+        var engineParameters = pool.largestEngine();
+        return new ExternalEngineRegistration(
+                reg.name(),
+                engineParameters.maxThreads(),
+                engineParameters.maxHash(),
+                reg.defaultDepth(),
+                supportedVariants,
+                reg.secret());
     }
 
     public void run() {
+        try {
+            engineVariants = pool.supportedVariants();
+
+            for (int i = 0; i < registrations.size() && ! stopped; i++) {
+                int index = i;
+                var registration = registrations.get(index);
+                register_engine(registration, engineVariants);
+                acquiring.add(Thread.ofPlatform().daemon().name("acquire-" + registration.name()).start(() -> acquire(index)));
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            ready.countDown();
+        }
+
+        for (var thread : acquiring) {
+            try {
+                thread.join();
+            } catch(InterruptedException ie) {
+                logging.log(Level.ERROR, "Interrupted", ie);
+                throw new RuntimeException(ie);
+            }
+        }
+    }
 
-        var engine = Engine.init(engineCmd.toString(), parameters, logging);
-        register_engine(api, engine, secret);
-        var analysing = new AtomicBoolean(false);
+    // Stops acquiring work and terminates the engines, before another Main takes over the
+    // same secrets. Work acquired while stopping is rejected, as no search is left to run it.
+    void shutdown() {
+        stopped = true;
+        acquiring.forEach(Thread::interrupt);
+        pool.terminateAll();
+    }
 
-        while(true)
-            switch(ok(api.acquire(secret))) {
+    // Applies new settings without restarting the engines, which keep their hash warm.
+    // The registrations are the same ones with new names, depths or variants, the broker
+    // is only told when what they advertise changed.
+    synchronized void reconfigure(Parameters parameters, List<Registration> registrations) {
+        if (registrations.size() != this.registrations.size())
+            throw new IllegalArgumentException("Expected %d registrations".formatted(this.registrations.size()));
+        this.parameters = parameters;
+        this.registrations = List.copyOf(registrations);
+        scheduler.registrations(this.registrations);
+        pool.reconfigure(parameters);
+        if (engineVariants != null) reregister();
+    }
+
+    // Updates the registrations whose advertised capabilities changed
+    synchronized void reregister() {
+        for (var registration : registrations) {
+            if (advertisement(registration, engineVariants).equals(advertised.get(registration.secret()))) continue;
+            try {
+                register_engine(registration, engineVariants);
+            } catch (RuntimeException e) {
+                logging.log(Level.WARNING, () -> "Failed to update engine %s: %s".formatted(registration.name(), e.getMessage()));
+            }
+        }
+    }
+
+    void acquire(int index) {
+        while(! stopped) {
+            var registration = registrations.get(index);
+            One<ExternalEngineRequest> res;
+            try {
+                res = ok(registration.api().acquire(registration.secret()));
+            } catch (RuntimeException e) {
+                // An acquire interrupted by shutdown() fails
+                if (stopped) return;
+                throw e;
+            }
+            switch(res) {
                 case Fail<ExternalEngineRequest> fail -> {
                     logging.log(Level.ERROR, () -> "Error while trying to acquire work: %s".formatted(fail));
                     try {Thread.sleep(5000);}catch(InterruptedException ie) {}
                 }
                 case None<ExternalEngineRequest> none -> {
-                    if (engine.alive && ! analysing.get() && engine.idle_time().toSeconds() > parameters.keepAlive()) {
-                        logging.log(Level.INFO, "Terminating idle engine");
-                        engine.terminate();
-                    }
+                    pool.terminateIdle();
+                    boolean resized = pool.resize();
+                    if (pool.capacityChanged.getAndSet(false) || resized) reregister();
+                }
+                case Entry<ExternalEngineRequest> one when stopped -> {
+                    scheduler.reject(new Scheduler.Job(registration, one.entry()));
                 }
                 case Entry<ExternalEngineRequest> one -> {
-                    engine.stop();
-                    analysing.set(false);
-
-                    if (! engine.alive) engine = Engine.init(engineCmd.toString(), parameters, logging);
-
-                    var job_started = new Semaphore(0);
-                    final Engine engineRef = engine;
-                    Thread.ofPlatform().daemon().start(() -> {
-                        logging.log(Level.INFO, () -> "Handling job %s".formatted(one.entry().id()));
-                        try {
-                            var inputStream = engineRef.analyse(one.entry().work(), job_started);
-                            analysing.set(true);
-                            ok(api.answer(one.entry().id(), inputStream));
-                        } catch (IOException ioe) {
-                            logging.log(Level.ERROR, "Error while trying to answer", ioe);
-                        } finally {
-                            analysing.set(false);
-                            job_started.release();
-                        }
-                    });
-                    try {
-                        job_started.acquire();
-                    } catch(InterruptedException ie) {
-                        logging.log(Level.ERROR, "Interrupted", ie);
-                        throw new RuntimeException(ie);
-                    }
+                    if (trace != null) trace.record(index, one.entry().work());
+                    scheduler.submit(new Scheduler.Job(registration, one.entry()));
                 }
             }
+        }
     }
 }
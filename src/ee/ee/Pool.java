@@ -0,0 +1,505 @@
+package ee;
+
+import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import ee.Engine.Parameters;
+
+class Pool {
+
+    // A place to run engines, the local machine or a remote worker
+    static class Host {
+        final String name;
+        final InetSocketAddress address;
+        int slots;
+        // Of each engine of a worker as it reported them, 0 when it did not
+        int threads;
+        int hash;
+        // Engines being started, they take up a slot already
+        int starting;
+        // As of the last probe, null before the first one
+        Boolean reachable;
+        Instant down_until = Instant.MIN;
+
+        Host(String name, InetSocketAddress address, int slots) {
+            this.name = name;
+            this.address = address;
+            this.slots = slots;
+        }
+
+        boolean local() { return address == null; }
+        boolean up() { return Instant.now().isAfter(down_until); }
+    }
+
+    // Hit rate of session affinity, and how searches on a warm hash compare with cold ones
+    static class AffinityStats {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder[] jobs = { new LongAdder(), new LongAdder() };
+        final LongAdder[] millis = { new LongAdder(), new LongAdder() };
+        final LongAdder[] depths = { new LongAdder(), new LongAdder() };
+
+        void record(Engine.Search search) {
+            if (search.depth() == 0) return;
+            int i = search.warm() ? 1 : 0;
+            jobs[i].increment();
+            millis[i].add(search.time().toMillis());
+            depths[i].add(search.depth());
+        }
+
+        double hitRate() {
+            long total = hits.sum() + misses.sum();
+            return total == 0 ? 0 : hits.sum() / (double) total;
+        }
+
+        String report() {
+            return "affinity hit rate %.1f%% (%d/%d), warm hash: %s, cold hash: %s".formatted(
+                    hitRate() * 100, hits.sum(), hits.sum() + misses.sum(), average(1), average(0));
+        }
+
+        String average(int i) {
+            long n = jobs[i].sum();
+            if (n == 0) return "no jobs";
+            double seconds = millis[i].sum() / 1000d;
+            return "%d jobs, avg depth %.1f in %.2f s (%.1f depth/s)".formatted(
+                    n, depths[i].sum() / (double) n, seconds / n, seconds == 0 ? 0 : depths[i].sum() / seconds);
+        }
+    }
+
+    static Duration downTime = Duration.ofSeconds(30);
+    static Duration probeInterval = Duration.ofSeconds(5);
+    static Duration resizeInterval = Duration.ofSeconds(10);
+    static int maxSessions = 256;
+
+    Path engineCmd;
+    Parameters parameters;
+    int size;
+    List<Host> hosts = new ArrayList<>();
+    Map<Engine, Host> engines = new LinkedHashMap<>();
+    Set<Engine> leased = new HashSet<>();
+    Map<String, Engine> affinity = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Engine> eldest) { return size() > maxSessions; }
+    };
+    AffinityStats affinityStats = new AffinityStats();
+    Stats stats = new Stats();
+    boolean autoThreads;
+    boolean autoHash;
+    Budget budget;
+    String workerSecret;
+    Instant resized = Instant.MIN;
+    // A worker came or went or reported another size, the registrations may advertise more or less
+    AtomicBoolean capacityChanged = new AtomicBoolean();
+    Lock lock = new ReentrantLock();
+    Condition changed = lock.newCondition();
+    // Called without the lock when a started engine can be leased
+    Runnable started = () -> {};
+    System.Logger logger;
+
+    Pool(Path engineCmd, Parameters parameters, int size, List<InetSocketAddress> workers, System.Logger logger) {
+        this.engineCmd = engineCmd;
+        this.parameters = parameters;
+        this.size = workers.isEmpty() ? Math.max(1, size) : Math.max(0, size);
+        this.logger = logger;
+        if (this.size > 0) hosts.add(new Host("local", null, this.size));
+        for (var address : workers) {
+            var host = new Host(address.getHostString() + ":" + address.getPort(), address, 0);
+            probe(host);
+            hosts.add(host);
+        }
+        if (! workers.isEmpty())
+            Thread.ofPlatform().daemon().name("worker-probe").start(this::probeWorkers);
+    }
+
+    // The configured threads and hash are the budget of the whole box,
+    // each local engine process gets an equal share of it.
+    Parameters engineParameters() {
+        return new Parameters(
+                Math.max(1, parameters.maxHash() / Math.max(1, size)),
+                Math.max(1, parameters.maxThreads() / Math.max(1, size)),
+                parameters.defaultDepth(),
+                parameters.keepAlive(),
+                parameters.options());
+    }
+
+    // Remote engines are sized by what their worker has, not by the share of a local engine
+    Parameters engineParameters(Host host) {
+        var local = engineParameters();
+        if (host.local() || host.threads == 0) return local;
+        return new Parameters(host.hash, host.threads, local.defaultDepth(), local.keepAlive(), local.options());
+    }
+
+    // The largest engine of the hosts which are up, what a job may ask for
+    Parameters largestEngine() {
+        lock.lock();
+        try {
+            var largest = engineParameters();
+            int threads = 0;
+            int hash = 0;
+            for (var host : hosts) {
+                if (! host.local() && ! Boolean.TRUE.equals(host.reachable)) continue;
+                var parameters = engineParameters(host);
+                threads = Math.max(threads, parameters.maxThreads());
+                hash = Math.max(hash, parameters.maxHash());
+            }
+            if (threads == 0) return largest;
+            return new Parameters(hash, threads, largest.defaultDepth(), largest.keepAlive(), largest.options());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Workers are probed now and then without the lock, lease only picks the ones known to be up
+    void probeWorkers() {
+        while (true) {
+            try {
+                Thread.sleep(probeInterval.toMillis());
+            } catch (InterruptedException ie) {
+                return;
+            }
+            for (var host : hosts)
+                if (! host.local()) probe(host);
+        }
+    }
+
+    void probe(Host host) {
+        RemoteEngine.Greeting greeting = null;
+        Exception failure = null;
+        try {
+            greeting = RemoteEngine.probe(host.address);
+        } catch (Exception e) {
+            failure = e;
+        }
+        lock.lock();
+        try {
+            var previous = host.reachable;
+            host.reachable = greeting != null;
+            if (greeting != null) {
+                if (! Boolean.TRUE.equals(previous) || host.threads != greeting.threads() || host.hash != greeting.hash())
+                    capacityChanged.set(true);
+                host.slots = greeting.slots();
+                host.threads = greeting.threads();
+                host.hash = greeting.hash();
+                host.down_until = Instant.MIN;
+                if (! Boolean.TRUE.equals(previous)) logger.log(Level.INFO, () -> "Worker %s has %d slots of %d threads and %d MiB hash".formatted(
+                            host.name, host.slots, host.threads, host.hash));
+            } else {
+                if (Boolean.TRUE.equals(previous)) capacityChanged.set(true);
+                host.down_until = Instant.now().plus(downTime);
+                var message = failure.getMessage();
+                if (! Boolean.FALSE.equals(previous)) logger.log(Level.WARNING, () -> "Worker %s unavailable: %s".formatted(host.name, message));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<String> supportedVariants() {
+        Engine engine;
+        try {
+            engine = leaseWaiting(null);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            engine = null;
+        }
+        if (engine == null) throw new IllegalStateException("No engine available");
+        try {
+            return engine.supportedVariants();
+        } finally {
+            release(engine);
+        }
+    }
+
+    int free(Host host) {
+        return host.slots - (int) leased.stream().filter(engine -> engines.get(engine) == host).count();
+    }
+
+    boolean available() {
+        lock.lock();
+        try {
+            removeDead();
+            return hosts.stream().anyMatch(host -> host.up() && free(host) > 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Leases an idle engine. When there is none, one is started in the background on the least
+    // loaded host with room and null is returned, leasing never waits for a process or a worker.
+    Engine lease(String session) {
+        lock.lock();
+        try {
+            var engine = idle(session);
+            if (engine != null) return engine;
+            hosts.stream()
+                .filter(Host::up)
+                .filter(host -> free(host) - host.starting > 0)
+                .max(Comparator.comparingDouble(host -> (free(host) - host.starting) / (double) host.slots))
+                .ifPresent(this::start);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits until an engine can be leased, for callers with nothing else to do meanwhile.
+    // Woken when an engine is started or released, and now and then for workers coming back.
+    Engine await(String session) throws InterruptedException {
+        lock.lock();
+        try {
+            Engine engine;
+            while ((engine = lease(session)) == null)
+                changed.await(probeInterval.toMillis(), TimeUnit.MILLISECONDS);
+            return engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // An engine which is idle already, for extra work which must not start processes.
+    // Engines serving no session are taken first, the others of the least recent session.
+    Engine spare() {
+        return idle(null);
+    }
+
+    // Waits for a started engine, for callers holding no other lock
+    Engine leaseWaiting(String session) throws InterruptedException {
+        lock.lock();
+        try {
+            var engine = lease(session);
+            while (engine == null && hosts.stream().anyMatch(host -> host.starting > 0)) {
+                changed.await();
+                engine = idle(session);
+            }
+            return engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The engine which last served the session if it is idle, so its hash stays warm.
+    // Otherwise the idle engine of the least loaded host whose session was seen least recently.
+    Engine idle(String session) {
+        lock.lock();
+        try {
+            removeDead();
+            if (session != null) {
+                var engine = affinity.get(session);
+                if (engine != null && engine.alive && ! leased.contains(engine) && engines.get(engine).up()) {
+                    affinityStats.hits.increment();
+                    leased.add(engine);
+                    return engine;
+                }
+            }
+
+            var candidates = hosts.stream()
+                .filter(Host::up)
+                .filter(host -> free(host) > 0)
+                .sorted(Comparator.<Host>comparingDouble(host -> free(host) / (double) host.slots).reversed())
+                .toList();
+
+            var recent = List.copyOf(affinity.values());
+            for (var host : candidates) {
+                var idle = engines.entrySet().stream()
+                    .filter(entry -> entry.getValue() == host)
+                    .map(Map.Entry::getKey)
+                    .filter(engine -> ! leased.contains(engine))
+                    .min(Comparator.comparingInt(recent::lastIndexOf));
+                if (idle.isPresent()) {
+                    return leased(idle.get(), session);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts an engine without the lock, it is leased by whoever asks next
+    void start(Host host) {
+        host.starting++;
+        var parameters = engineParameters(host);
+        Thread.ofPlatform().daemon().name("engine-start-" + host.name).start(() -> {
+            Engine engine = null;
+            try {
+                engine = host.local()
+                    ? Engine.init(engineCmd.toString(), parameters, logger)
+                    : RemoteEngine.connect(host.address, workerSecret, parameters, logger);
+                engine.stats = stats;
+            } catch (RuntimeException e) {
+                if (host.local()) logger.log(Level.ERROR, "Failed to start engine", e);
+                else logger.log(Level.WARNING, () -> "Worker %s failed: %s".formatted(host.name, e.getMessage()));
+            }
+            lock.lock();
+            try {
+                host.starting--;
+                if (engine != null) {
+                    engines.put(engine, host);
+                    apply(engineParameters());
+                } else if (! host.local()) {
+                    host.down_until = Instant.now().plus(downTime);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            started.run();
+        });
+    }
+
+    Engine leased(Engine engine, String session) {
+        leased.add(engine);
+        if (session != null) {
+            affinityStats.misses.increment();
+            affinity.values().removeIf(e -> e == engine);
+            affinity.put(session, engine);
+        }
+        return engine;
+    }
+
+    void release(Engine engine) {
+        lock.lock();
+        try {
+            leased.remove(engine);
+            if (! engine.alive) {
+                // The worker is left alone until a probe finds it again
+                var host = engines.remove(engine);
+                if (host != null && ! host.local()) host.down_until = Instant.now().plus(downTime);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Threads and/or hash follow the cpu and memory limits of the container or host
+    void autoSize(boolean threads, boolean hash) {
+        autoThreads = threads;
+        autoHash = hash;
+        resize();
+    }
+
+    // Re-reads the limits now and then. Local engines are clamped to the new size straight away,
+    // idle ones holding more hash than now fits are terminated. Returns true when the size changed.
+    boolean resize() {
+        if (! autoThreads && ! autoHash) return false;
+        lock.lock();
+        try {
+            if (Instant.now().isBefore(resized.plus(resizeInterval))) return false;
+            resized = Instant.now();
+            var read = Budget.read();
+            if (read.equals(budget)) return false;
+            budget = read;
+
+            var previous = engineParameters();
+            parameters = new Parameters(
+                    autoHash ? budget.hash(size) : parameters.maxHash(),
+                    autoThreads ? budget.cpus() : parameters.maxThreads(),
+                    parameters.defaultDepth(),
+                    parameters.keepAlive(),
+                    parameters.options());
+            var current = engineParameters();
+            if (current.equals(previous)) return false;
+
+            logger.log(Level.INFO, () -> "Sized %d local engines to %d threads and %d MiB hash each, for %s".formatted(
+                        size, current.maxThreads(), current.maxHash(), budget));
+            apply(current);
+            for (var engine : engines.keySet()) {
+                if (engines.get(engine).local() && engine.alive && ! leased.contains(engine) && engine.hash > current.maxHash()) {
+                    logger.log(Level.INFO, "Terminating idle engine with more hash than fits");
+                    engine.terminate();
+                }
+            }
+            removeDead();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // New settings for the running engines, which keep their process and hash contents.
+    // An option that was removed has no value to go back to, so idle engines setting it are
+    // terminated and start over with the engine defaults.
+    void reconfigure(Parameters parameters) {
+        lock.lock();
+        try {
+            var removed = new ArrayList<>(this.parameters.options());
+            removed.removeAll(parameters.options());
+            this.parameters = parameters;
+            apply(engineParameters());
+            if (! removed.isEmpty()) {
+                for (var engine : engines.keySet()) {
+                    if (engines.get(engine).local() && engine.alive && ! leased.contains(engine)) {
+                        logger.log(Level.INFO, () -> "Terminating idle engine to unset %s".formatted(removed));
+                        engine.terminate();
+                    }
+                }
+                removeDead();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes effect before the next search of each local engine
+    void apply(Parameters current) {
+        for (var entry : engines.entrySet()) {
+            if (! entry.getValue().local()) continue;
+            var engine = entry.getKey();
+            engine.max_threads = current.maxThreads();
+            engine.max_hash = current.maxHash();
+            engine.options = current.options();
+        }
+    }
+
+    // The latest sample of each local engine process, null before any has searched
+    String processes() {
+        lock.lock();
+        try {
+            var samples = engines.keySet().stream()
+                .filter(engine -> engine.usage != null)
+                .map(engine -> "%s %d MiB rss, %d MiB swap, %.1f cpu s, %d major faults".formatted(
+                            engine.id, engine.usage.rss() / Proc.MiB, engine.usage.swap() / Proc.MiB,
+                            engine.usage.cpuNanos() / 1e9, engine.usage.majorFaults()))
+                .toList();
+            return samples.isEmpty() ? null : String.join(", ", samples);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void terminateIdle() {
+        lock.lock();
+        try {
+            for (var engine : engines.keySet()) {
+                if (engine.alive && ! leased.contains(engine) && engine.idle_time().toSeconds() > parameters.keepAlive()) {
+                    logger.log(Level.INFO, "Terminating idle engine");
+                    engine.terminate();
+                }
+            }
+            removeDead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void terminateAll() {
+        lock.lock();
+        try {
+            engines.keySet().forEach(Engine::terminate);
+            removeDead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void removeDead() {
+        engines.keySet().removeIf(engine -> ! engine.alive && ! leased.contains(engine));
+        affinity.values().removeIf(engine -> ! engine.alive);
+    }
+}
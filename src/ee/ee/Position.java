@@ -0,0 +1,581 @@
+package ee;
+
+import java.util.*;
+
+// Applies UCI moves to a FEN and hashes the final position, so positions
+// reached by different move orders, or given as a FEN instead of moves, get the same key.
+// Moves are trusted to be legal, they come from Lichess.
+class Position {
+
+    static final String PIECES = "PNBRQKpnbrqk";
+    static final int EMPTY = -1;
+
+    static final long[][] pieceKeys = new long[12][64];
+    static final long[] promotedKeys = new long[64];
+    static final long[][] pocketKeys = new long[10][32];
+    static final long[] castlingKeys = new long[64];
+    static final long[] enPassantKeys = new long[8];
+    static final long[][] checkKeys = new long[2][4];
+    static final long blackKey;
+
+    static {
+        var random = new SplittableRandom(0x6565L);
+        for (var keys : pieceKeys) Arrays.setAll(keys, i -> random.nextLong());
+        for (var keys : pocketKeys) Arrays.setAll(keys, i -> random.nextLong());
+        for (var keys : checkKeys) Arrays.setAll(keys, i -> random.nextLong());
+        Arrays.setAll(promotedKeys, i -> random.nextLong());
+        Arrays.setAll(castlingKeys, i -> random.nextLong());
+        Arrays.setAll(enPassantKeys, i -> random.nextLong());
+        blackKey = random.nextLong();
+    }
+
+    final boolean crazyhouse;
+    final boolean atomic;
+    final boolean threeCheck;
+    final int[] board = new int[64];
+    long promoted;
+    final int[] pocket = new int[10];
+    long castling;
+    int enPassant = EMPTY;
+    boolean white;
+    final int[] checks = new int[2];
+    int halfmoves;
+    int fullmoves = 1;
+
+    Position(String variant, String fen) {
+        crazyhouse = variant.equals("crazyhouse");
+        atomic = variant.equals("atomic");
+        threeCheck = variant.equals("3check") || variant.equals("threeCheck");
+        Arrays.fill(board, EMPTY);
+        String[] fields = fen.trim().split(" ");
+        if (fields.length < 2) throw new IllegalArgumentException("Invalid FEN [%s]".formatted(fen));
+
+        parsePlacement(fields[0]);
+        white = switch (fields[1]) {
+            case "w" -> true;
+            case "b" -> false;
+            default -> throw new IllegalArgumentException("Invalid side to move [%s]".formatted(fen));
+        };
+        if (fields.length > 2) parseCastling(fields[2]);
+        if (fields.length > 3 && ! fields[3].equals("-")) enPassant = square(fields[3], 0);
+
+        // Three-check, either as checks remaining "3+3" or as checks given "+0+0", and the move clocks
+        int clocks = 0;
+        for (int i = 4; i < fields.length; i++) {
+            String[] arr = fields[i].split("\\+");
+            if (arr.length == 3 && arr[0].isEmpty()) {
+                checks[0] = Integer.parseInt(arr[1]);
+                checks[1] = Integer.parseInt(arr[2]);
+            } else if (arr.length == 2) {
+                checks[0] = 3 - Integer.parseInt(arr[0]);
+                checks[1] = 3 - Integer.parseInt(arr[1]);
+            } else if (clocks++ == 0) {
+                halfmoves = Integer.parseInt(fields[i]);
+            } else {
+                fullmoves = Integer.parseInt(fields[i]);
+            }
+        }
+    }
+
+    Position(Position other) {
+        crazyhouse = other.crazyhouse;
+        atomic = other.atomic;
+        threeCheck = other.threeCheck;
+        System.arraycopy(other.board, 0, board, 0, board.length);
+        System.arraycopy(other.pocket, 0, pocket, 0, pocket.length);
+        System.arraycopy(other.checks, 0, checks, 0, checks.length);
+        promoted = other.promoted;
+        castling = other.castling;
+        enPassant = other.enPassant;
+        white = other.white;
+        halfmoves = other.halfmoves;
+        fullmoves = other.fullmoves;
+    }
+
+    static long key(String variant, String fen, List<String> moves) {
+        var position = new Position(variant, fen);
+        for (var move : moves)
+            position.play(move);
+        return position.key();
+    }
+
+    void parsePlacement(String placement) {
+        int rank = 7, file = 0;
+        for (int i = 0; i < placement.length(); i++) {
+            char c = placement.charAt(i);
+            if (c == '/') {
+                rank--;
+                file = 0;
+                if (rank < 0) {
+                    parsePocket(placement.substring(i + 1));
+                    return;
+                }
+            } else if (c == '[') {
+                parsePocket(placement.substring(i + 1, placement.indexOf(']', i)));
+                return;
+            } else if (c == '~') {
+                promoted |= 1L << (rank * 8 + file - 1);
+            } else if (Character.isDigit(c)) {
+                file += c - '0';
+            } else {
+                int piece = PIECES.indexOf(c);
+                if (piece == EMPTY || file > 7 || rank < 0) throw new IllegalArgumentException("Invalid FEN placement [%s]".formatted(placement));
+                board[rank * 8 + file++] = piece;
+            }
+        }
+    }
+
+    void parsePocket(String pieces) {
+        for (char c : pieces.toCharArray()) {
+            int piece = PIECES.indexOf(c);
+            if (piece == EMPTY || piece % 6 == 5) throw new IllegalArgumentException("Invalid pocket [%s]".formatted(pieces));
+            pocket[pocketIndex(piece)]++;
+        }
+    }
+
+    // KQkq picks the outermost rook on that side of the king, files A-H name the rook
+    void parseCastling(String rights) {
+        if (rights.equals("-")) return;
+        for (char c : rights.toCharArray()) {
+            boolean whiteRook = Character.isUpperCase(c);
+            int rank = whiteRook ? 0 : 7;
+            int rook = whiteRook ? 3 : 9;
+            int king = king(whiteRook);
+            switch (Character.toLowerCase(c)) {
+                case 'k' -> {
+                    for (int file = 7; file >= 0; file--)
+                        if (board[rank * 8 + file] == rook && (king == EMPTY || file > king % 8)) {
+                            castling |= 1L << (rank * 8 + file);
+                            break;
+                        }
+                }
+                case 'q' -> {
+                    for (int file = 0; file < 8; file++)
+                        if (board[rank * 8 + file] == rook && (king == EMPTY || file < king % 8)) {
+                            castling |= 1L << (rank * 8 + file);
+                            break;
+                        }
+                }
+                default -> {
+                    int file = Character.toLowerCase(c) - 'a';
+                    if (file < 0 || file > 7) throw new IllegalArgumentException("Invalid castling rights [%s]".formatted(rights));
+                    castling |= 1L << (rank * 8 + file);
+                }
+            }
+        }
+    }
+
+    void play(String move) {
+        if (move.equals("0000")) {
+            enPassant = EMPTY;
+            next(false);
+            return;
+        }
+        if (move.length() < 4) throw new IllegalArgumentException("Invalid move [%s]".formatted(move));
+
+        int color = white ? 0 : 6;
+        if (move.charAt(1) == '@') {
+            int piece = PIECES.indexOf(Character.toUpperCase(move.charAt(0))) + color;
+            int to = square(move, 2);
+            pocket[pocketIndex(piece)]--;
+            board[to] = piece;
+            enPassant = EMPTY;
+            checked(color);
+            next(piece % 6 == 0);
+            return;
+        }
+
+        int from = square(move, 0);
+        int to = square(move, 2);
+        int piece = board[from];
+        if (piece == EMPTY || piece - color < 0 || piece - color > 5) throw new IllegalArgumentException("No piece to move [%s]".formatted(move));
+
+        int type = piece - color;
+        long rank = 0xFFL << (white ? 0 : 56);
+
+        if (type == 5 && (board[to] == color + 3 && (castling & (1L << to)) != 0
+                || Math.abs(to % 8 - from % 8) == 2 && to / 8 == from / 8 && board[to] != color + 3)) {
+            castle(from, to, color);
+            castling &= ~rank;
+            enPassant = EMPTY;
+            checked(color);
+            next(false);
+            return;
+        }
+
+        int captured = board[to];
+        int capturedAt = to;
+        if (type == 0 && to == enPassant && captured == EMPTY) {
+            capturedAt = (from / 8) * 8 + to % 8;
+            captured = board[capturedAt];
+        }
+
+        // Captured pieces change sides in crazyhouse, promoted ones back into pawns
+        if (captured != EMPTY && crazyhouse) {
+            boolean capturedPromoted = (promoted & (1L << capturedAt)) != 0;
+            pocket[pocketIndex((capturedPromoted ? 0 : captured % 6) + color)]++;
+        }
+
+        boolean wasPromoted = (promoted & (1L << from)) != 0;
+        board[from] = EMPTY;
+        board[capturedAt] = EMPTY;
+        promoted &= ~(1L << from) & ~(1L << to) & ~(1L << capturedAt);
+
+        if (move.length() > 4) {
+            int promotion = PIECES.indexOf(Character.toUpperCase(move.charAt(4)));
+            if (promotion == EMPTY) throw new IllegalArgumentException("Invalid promotion [%s]".formatted(move));
+            board[to] = promotion + color;
+            if (crazyhouse) promoted |= 1L << to;
+        } else {
+            board[to] = piece;
+            if (wasPromoted) promoted |= 1L << to;
+        }
+
+        castling &= ~(1L << from) & ~(1L << to);
+        if (type == 5) castling &= ~rank;
+
+        if (captured != EMPTY && atomic) explode(to);
+
+        enPassant = type == 0 && Math.abs(to - from) == 16 ? (from + to) / 2 : EMPTY;
+        checked(color);
+        next(type == 0 || captured != EMPTY);
+    }
+
+    void next(boolean irreversible) {
+        halfmoves = irreversible ? 0 : halfmoves + 1;
+        if (! white) fullmoves++;
+        white = ! white;
+    }
+
+    void castle(int king, int rookOrTarget, int color) {
+        int rook = rookOrTarget;
+        if (board[rook] != color + 3) {
+            // King moved two squares, find the castling rook on that side
+            rook = EMPTY;
+            for (int sq = king; sq >= 0 && sq < 64 && sq / 8 == king / 8; sq += rookOrTarget > king ? 1 : -1)
+                if ((castling & (1L << sq)) != 0) rook = sq;
+            if (rook == EMPTY) rook = rookOrTarget > king ? king / 8 * 8 + 7 : king / 8 * 8;
+        }
+        int rank = king / 8 * 8;
+        boolean kingSide = rook > king;
+        board[king] = EMPTY;
+        board[rook] = EMPTY;
+        board[rank + (kingSide ? 6 : 2)] = color + 5;
+        board[rank + (kingSide ? 5 : 3)] = color + 3;
+    }
+
+    // Atomic captures remove the capturing piece and all pieces but pawns around it
+    void explode(int center) {
+        board[center] = EMPTY;
+        castling &= ~(1L << center);
+        for (int df = -1; df <= 1; df++)
+            for (int dr = -1; dr <= 1; dr++) {
+                int file = center % 8 + df, rank = center / 8 + dr;
+                if (file < 0 || file > 7 || rank < 0 || rank > 7) continue;
+                int sq = rank * 8 + file;
+                if (board[sq] != EMPTY && board[sq] % 6 != 0) {
+                    board[sq] = EMPTY;
+                    castling &= ~(1L << sq);
+                }
+            }
+    }
+
+    void checked(int color) {
+        if (! threeCheck) return;
+        int king = king(color != 0);
+        if (king != EMPTY && attacked(king, color)) checks[color == 0 ? 0 : 1]++;
+    }
+
+    int king(boolean whiteKing) {
+        int king = whiteKing ? 5 : 11;
+        for (int sq = 0; sq < 64; sq++)
+            if (board[sq] == king) return sq;
+        return EMPTY;
+    }
+
+    // Is the square attacked by pieces of the color
+    boolean attacked(int sq, int color) {
+        int file = sq % 8, rank = sq / 8;
+        int pawnRank = rank + (color == 0 ? -1 : 1);
+        for (int df : new int[] { -1, 1 })
+            if (at(file + df, pawnRank) == color) return true;
+        for (int[] d : KNIGHT)
+            if (at(file + d[0], rank + d[1]) == color + 1) return true;
+        for (int[] d : KING)
+            if (at(file + d[0], rank + d[1]) == color + 5) return true;
+        for (int[] d : KING) {
+            boolean diagonal = d[0] != 0 && d[1] != 0;
+            for (int f = file + d[0], r = rank + d[1]; f >= 0 && f < 8 && r >= 0 && r < 8; f += d[0], r += d[1]) {
+                int piece = board[r * 8 + f];
+                if (piece == EMPTY) continue;
+                if (piece == color + 4 || piece == color + (diagonal ? 2 : 3)) return true;
+                break;
+            }
+        }
+        return false;
+    }
+
+    boolean inCheck() {
+        int king = king(white);
+        return king != EMPTY && attacked(king, white ? 6 : 0);
+    }
+
+    // Legal moves of standard chess and Chess960, castling as king takes rook
+    List<String> moves() {
+        int color = white ? 0 : 6;
+        List<String> moves = new ArrayList<>();
+        for (int from = 0; from < 64; from++) {
+            int piece = board[from];
+            if (piece == EMPTY || piece - color < 0 || piece - color > 5) continue;
+            int file = from % 8, rank = from / 8;
+            switch (piece - color) {
+                case 0 -> {
+                    int dir = white ? 1 : -1;
+                    if (at(file, rank + dir) == EMPTY) {
+                        pawnMove(moves, from, from + 8 * dir);
+                        if (rank == (white ? 1 : 6) && at(file, rank + 2 * dir) == EMPTY)
+                            moves.add(squareName(from) + squareName(from + 16 * dir));
+                    }
+                    for (int df : new int[] { -1, 1 }) {
+                        if (file + df < 0 || file + df > 7) continue;
+                        int to = from + 8 * dir + df;
+                        int target = board[to];
+                        if (target != EMPTY && (target < 6) != white || target == EMPTY && to == enPassant)
+                            pawnMove(moves, from, to);
+                    }
+                }
+                case 1 -> steps(moves, from, KNIGHT, color, false);
+                case 2 -> steps(moves, from, DIAGONAL, color, true);
+                case 3 -> steps(moves, from, STRAIGHT, color, true);
+                case 4 -> steps(moves, from, KING, color, true);
+                default -> steps(moves, from, KING, color, false);
+            }
+        }
+        int castlingKing = king(white);
+        if (castlingKing != EMPTY && ! inCheck())
+            for (long bits = castling & (0xFFL << (white ? 0 : 56)); bits != 0; bits &= bits - 1) {
+                int rook = Long.numberOfTrailingZeros(bits);
+                if (castles(castlingKing, rook, color)) moves.add(squareName(castlingKing) + squareName(rook));
+            }
+        moves.removeIf(move -> {
+            var next = new Position(this);
+            next.play(move);
+            int king = next.king(white);
+            return king != EMPTY && next.attacked(king, 6 - color);
+        });
+        return moves;
+    }
+
+    // Nothing but the king and the rook stands between them and their destinations, and the
+    // king doesn't pass an attacked square. Where the king ends up is checked with the other moves.
+    boolean castles(int king, int rook, int color) {
+        if (board[rook] != color + 3 || rook / 8 != king / 8) return false;
+        int rank = king / 8 * 8;
+        int kingTo = rank + (rook > king ? 6 : 2), rookTo = rank + (rook > king ? 5 : 3);
+        int from = Math.min(Math.min(king, rook), Math.min(kingTo, rookTo));
+        int to = Math.max(Math.max(king, rook), Math.max(kingTo, rookTo));
+        for (int sq = from; sq <= to; sq++)
+            if (sq != king && sq != rook && board[sq] != EMPTY) return false;
+        for (int sq = Math.min(king, kingTo); sq <= Math.max(king, kingTo); sq++)
+            if (attacked(sq, 6 - color)) return false;
+        return true;
+    }
+
+    static void pawnMove(List<String> moves, int from, int to) {
+        if (to / 8 == 0 || to / 8 == 7) {
+            for (var promotion : List.of("q", "r", "b", "n"))
+                moves.add(squareName(from) + squareName(to) + promotion);
+        } else {
+            moves.add(squareName(from) + squareName(to));
+        }
+    }
+
+    void steps(List<String> moves, int from, int[][] directions, int color, boolean slide) {
+        for (int[] d : directions) {
+            for (int f = from % 8 + d[0], r = from / 8 + d[1]; f >= 0 && f < 8 && r >= 0 && r < 8; f += d[0], r += d[1]) {
+                int target = board[r * 8 + f];
+                if (target != EMPTY && target - color >= 0 && target - color <= 5) break;
+                moves.add(squareName(from) + squareName(r * 8 + f));
+                if (target != EMPTY || ! slide) break;
+            }
+        }
+    }
+
+    static final int[][] DIAGONAL = { {1,1}, {-1,1}, {-1,-1}, {1,-1} };
+    static final int[][] STRAIGHT = { {1,0}, {0,1}, {-1,0}, {0,-1} };
+    static final int[][] KNIGHT = { {1,2}, {2,1}, {2,-1}, {1,-2}, {-1,-2}, {-2,-1}, {-2,1}, {-1,2} };
+    static final int[][] KING = { {1,0}, {1,1}, {0,1}, {-1,1}, {-1,0}, {-1,-1}, {0,-1}, {1,-1} };
+
+    int at(int file, int rank) {
+        return file < 0 || file > 7 || rank < 0 || rank > 7 ? EMPTY : board[rank * 8 + file];
+    }
+
+    // Resolves a SAN move of the side to move to UCI, castling as king takes rook
+    String uci(String san) {
+        san = san.replaceAll("[+#!?]", "");
+        int color = white ? 0 : 6;
+        if (san.matches("[O0]-[O0](-[O0])?")) {
+            boolean kingSide = san.length() == 3;
+            int king = king(white);
+            int rook = EMPTY;
+            for (long bits = castling & (0xFFL << (white ? 0 : 56)); bits != 0; bits &= bits - 1) {
+                int sq = Long.numberOfTrailingZeros(bits);
+                if ((sq > king) == kingSide) rook = sq;
+            }
+            if (king == EMPTY || rook == EMPTY) throw new IllegalArgumentException("Cannot castle [%s]".formatted(san));
+            return squareName(king) + squareName(rook);
+        }
+
+        int drop = san.indexOf('@');
+        if (drop != -1) return (drop == 0 ? "P" : san.substring(0, 1).toUpperCase()) + san.substring(drop);
+
+        String promotion = "";
+        int eq = san.indexOf('=');
+        if (eq != -1) {
+            promotion = san.substring(eq + 1, eq + 2).toLowerCase();
+            san = san.substring(0, eq);
+        } else if (Character.isLowerCase(san.charAt(0)) && "NBRQK".indexOf(san.charAt(san.length() - 1)) != -1) {
+            promotion = san.substring(san.length() - 1).toLowerCase();
+            san = san.substring(0, san.length() - 1);
+        }
+
+        int type = "NBRQK".indexOf(san.charAt(0)) + 1;
+        String rest = (type == 0 ? san : san.substring(1)).replace("x", "");
+        if (rest.length() < 2) throw new IllegalArgumentException("Invalid move [%s]".formatted(san));
+        int to = square(rest, rest.length() - 2);
+        String hint = rest.substring(0, rest.length() - 2);
+
+        List<String> candidates = new ArrayList<>();
+        for (int from = 0; from < 64; from++)
+            if (board[from] == type + color && matches(from, hint) && reaches(from, to, type, color))
+                candidates.add(squareName(from) + squareName(to) + promotion);
+
+        // Ambiguous without the pins SAN leaves out
+        if (candidates.size() > 1) {
+            candidates.removeIf(move -> {
+                var next = new Position(this);
+                next.play(move);
+                int king = next.king(white);
+                return king != EMPTY && next.attacked(king, 6 - color);
+            });
+        }
+        if (candidates.size() != 1) throw new IllegalArgumentException("No single move for [%s]".formatted(san));
+        return candidates.get(0);
+    }
+
+    static boolean matches(int sq, String hint) {
+        for (char c : hint.toCharArray()) {
+            if (c >= 'a' && c <= 'h' && sq % 8 != c - 'a') return false;
+            if (c >= '1' && c <= '8' && sq / 8 != c - '1') return false;
+        }
+        return true;
+    }
+
+    boolean reaches(int from, int to, int type, int color) {
+        int df = to % 8 - from % 8, dr = to / 8 - from / 8;
+        return switch (type) {
+            case 0 -> {
+                int dir = color == 0 ? 1 : -1;
+                if (df == 0 && dr == dir) yield board[to] == EMPTY;
+                if (df == 0 && dr == 2 * dir) yield board[to] == EMPTY && board[from + 8 * dir] == EMPTY;
+                yield Math.abs(df) == 1 && dr == dir && (board[to] != EMPTY || to == enPassant);
+            }
+            case 1 -> Math.abs(df * dr) == 2;
+            case 5 -> Math.max(Math.abs(df), Math.abs(dr)) == 1;
+            default -> {
+                boolean diagonal = Math.abs(df) == Math.abs(dr) && df != 0;
+                boolean straight = (df == 0) != (dr == 0);
+                if (! (type == 2 ? diagonal : type == 3 ? straight : diagonal || straight)) yield false;
+                int step = Integer.signum(dr) * 8 + Integer.signum(df);
+                for (int sq = from + step; sq != to; sq += step)
+                    if (board[sq] != EMPTY) yield false;
+                yield true;
+            }
+        };
+    }
+
+    String fen() {
+        var sb = new StringBuilder();
+        for (int rank = 7; rank >= 0; rank--) {
+            int empty = 0;
+            for (int file = 0; file < 8; file++) {
+                int sq = rank * 8 + file;
+                if (board[sq] == EMPTY) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append(empty);
+                empty = 0;
+                sb.append(PIECES.charAt(board[sq]));
+                if ((promoted & (1L << sq)) != 0) sb.append('~');
+            }
+            if (empty > 0) sb.append(empty);
+            if (rank > 0) sb.append('/');
+        }
+        if (crazyhouse) {
+            sb.append('[');
+            for (int i = 0; i < pocket.length; i++)
+                sb.append(String.valueOf(PIECES.charAt(i < 5 ? i : i + 1)).repeat(Math.max(0, pocket[i])));
+            sb.append(']');
+        }
+        String rights = castlingRights(true) + castlingRights(false);
+        sb.append(white ? " w " : " b ").append(rights.isEmpty() ? "-" : rights);
+        sb.append(' ').append(enPassant == EMPTY ? "-" : squareName(enPassant));
+        if (threeCheck) sb.append(' ').append(3 - checks[0]).append('+').append(3 - checks[1]);
+        return sb.append(' ').append(halfmoves).append(' ').append(fullmoves).toString();
+    }
+
+    // KQkq when the rook is the outermost one on that side of the king, its file otherwise
+    String castlingRights(boolean whiteRooks) {
+        var sb = new StringBuilder();
+        int rank = whiteRooks ? 0 : 7, rook = whiteRooks ? 3 : 9;
+        int king = king(whiteRooks);
+        for (int file = 7; file >= 0; file--) {
+            if ((castling & (1L << (rank * 8 + file))) == 0) continue;
+            boolean kingSide = king == EMPTY || file > king % 8;
+            boolean outermost = true;
+            for (int f = kingSide ? file + 1 : 0; f < (kingSide ? 8 : file); f++)
+                if (board[rank * 8 + f] == rook) outermost = false;
+            char c = outermost ? (kingSide ? 'k' : 'q') : (char) ('a' + file);
+            sb.append(whiteRooks ? Character.toUpperCase(c) : c);
+        }
+        return sb.toString();
+    }
+
+    long key() {
+        long key = white ? 0 : blackKey;
+        for (int sq = 0; sq < 64; sq++)
+            if (board[sq] != EMPTY) key ^= pieceKeys[board[sq]][sq];
+        for (long bits = promoted; bits != 0; bits &= bits - 1)
+            key ^= promotedKeys[Long.numberOfTrailingZeros(bits)];
+        for (long bits = castling; bits != 0; bits &= bits - 1)
+            key ^= castlingKeys[Long.numberOfTrailingZeros(bits)];
+        for (int i = 0; i < pocket.length; i++)
+            if (pocket[i] > 0) key ^= pocketKeys[i][Math.min(31, pocket[i])];
+        for (int i = 0; i < 2; i++)
+            if (checks[i] > 0) key ^= checkKeys[i][Math.min(3, checks[i])];
+
+        // Only a capturable en passant square makes a different position
+        if (enPassant != EMPTY) {
+            int pawn = white ? 0 : 6;
+            int rank = enPassant / 8 + (white ? -1 : 1);
+            if (at(enPassant % 8 - 1, rank) == pawn || at(enPassant % 8 + 1, rank) == pawn)
+                key ^= enPassantKeys[enPassant % 8];
+        }
+        return key;
+    }
+
+    static int pocketIndex(int piece) {
+        return piece < 6 ? piece : piece - 1;
+    }
+
+    static String squareName(int sq) {
+        return "" + (char) ('a' + sq % 8) + (char) ('1' + sq / 8);
+    }
+
+    static int square(String s, int i) {
+        int file = s.charAt(i) - 'a', rank = s.charAt(i + 1) - '1';
+        if (file < 0 || file > 7 || rank < 0 || rank > 7) throw new IllegalArgumentException("Invalid square [%s]".formatted(s));
+        return rank * 8 + file;
+    }
+}
@@ -0,0 +1,98 @@
+package ee;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.stream.Stream;
+
+// What the kernel accounts to an engine process, read from /proc. Cpu time and major page
+// faults are of the whole process, the time spent runnable waiting for a cpu and the
+// context switches are summed over its threads, as each search thread is a task of its own.
+// The difference of two samples is the usage in between.
+record Proc(long wallNanos, long cpuNanos, long waitNanos, long voluntary, long involuntary,
+        long majorFaults, long rss, long swap) {
+
+    static Path root = Path.of("/proc");
+
+    // USER_HZ, the unit of the times in stat, is 100 on all common architectures
+    static final long NANOS_PER_TICK = 10_000_000;
+    static final long MiB = 1024 * 1024;
+
+    // Null when the process is gone or not local
+    static Proc sample(long pid) {
+        if (pid <= 0) return null;
+        var dir = root.resolve(String.valueOf(pid));
+        try {
+            long wall = System.nanoTime();
+            // The fields after the command, which may contain spaces, start with the state
+            var stat = Files.readString(dir.resolve("stat"));
+            var fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long majorFaults = Long.parseLong(fields[9]);
+            long cpu = (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * NANOS_PER_TICK;
+
+            long rss = 0, swap = 0;
+            for (var line : Files.readAllLines(dir.resolve("status"))) {
+                if (line.startsWith("VmRSS:")) rss = value(line) * 1024;
+                else if (line.startsWith("VmSwap:")) swap = value(line) * 1024;
+            }
+
+            long wait = 0, voluntary = 0, involuntary = 0;
+            try (Stream<Path> tasks = Files.list(dir.resolve("task"))) {
+                for (var task : tasks.toList()) {
+                    try {
+                        wait += Long.parseLong(Files.readString(task.resolve("schedstat")).strip().split(" ")[1]);
+                        for (var line : Files.readAllLines(task.resolve("sched"))) {
+                            if (line.startsWith("nr_voluntary_switches")) voluntary += value(line);
+                            else if (line.startsWith("nr_involuntary_switches")) involuntary += value(line);
+                        }
+                    } catch (IOException ioe) {} // The thread has exited
+                }
+            }
+            return new Proc(wall, cpu, wait, voluntary, involuntary, majorFaults, rss, swap);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The last number of a "key: value" line, without a unit
+    static long value(String line) {
+        var arr = line.replace(" kB", "").split("[:\\s]+");
+        return Long.parseLong(arr[arr.length - 1]);
+    }
+
+    // Counts of threads which exited in between are lost, so they don't go below zero
+    Proc since(Proc earlier) {
+        return new Proc(
+                wallNanos - earlier.wallNanos,
+                Math.max(0, cpuNanos - earlier.cpuNanos),
+                Math.max(0, waitNanos - earlier.waitNanos),
+                Math.max(0, voluntary - earlier.voluntary),
+                Math.max(0, involuntary - earlier.involuntary),
+                Math.max(0, majorFaults - earlier.majorFaults),
+                rss, swap);
+    }
+
+    // Of the threads searching
+    int busyPercent(int threads) {
+        return (int) (cpuNanos * 100 / Math.max(1, wallNanos * threads));
+    }
+
+    // Of the time the threads wanted to run
+    int waitPercent() {
+        return (int) (waitNanos * 100 / Math.max(1, cpuNanos + waitNanos));
+    }
+
+    // A search slowed down by the machine rather than by the position
+    String trouble() {
+        if (majorFaults > 0 || swap > 0)
+            return "%d major page faults and %d MiB swapped out, the engine is short of memory".formatted(majorFaults, swap / MiB);
+        if (waitPercent() >= 10 && waitNanos >= 100_000_000)
+            return "waited %d ms for a cpu (%d%%), the cpus are oversubscribed".formatted(waitNanos / 1_000_000, waitPercent());
+        return null;
+    }
+
+    String report(int threads) {
+        return "%.1f cpu s, %d%% of %d threads busy, %d ms waiting for a cpu, %d voluntary and %d involuntary context switches, %d major faults, %d MiB rss, %d MiB swap".formatted(
+                cpuNanos / 1e9, busyPercent(threads), threads, waitNanos / 1_000_000,
+                voluntary, involuntary, majorFaults, rss / MiB, swap / MiB);
+    }
+}
@@ -0,0 +1,118 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+
+import ee.Engine.Parameters;
+
+class RemoteEngine extends Engine {
+
+    // Threads and hash are what the worker has for each engine, 0 from workers which don't say
+    record Greeting(int slots, int free, int threads, int hash) {
+        static Greeting parse(String line) throws IOException {
+            String[] arr = line == null ? new String[0] : line.split(" ");
+            if ((arr.length != 5 && arr.length != 9) || ! arr[0].equals(Worker.GREETING) || ! arr[1].equals("slots") || ! arr[3].equals("free")
+                    || (arr.length == 9 && (! arr[5].equals("threads") || ! arr[7].equals("hash"))))
+                throw new IOException("Unexpected greeting [%s]".formatted(line));
+            return arr.length == 5
+                ? new Greeting(Integer.parseInt(arr[2]), Integer.parseInt(arr[4]), 0, 0)
+                : new Greeting(Integer.parseInt(arr[2]), Integer.parseInt(arr[4]), Integer.parseInt(arr[6]), Integer.parseInt(arr[8]));
+        }
+    }
+
+    static Duration heartbeatInterval = Duration.ofSeconds(2);
+    static Duration heartbeatTimeout = Duration.ofSeconds(10);
+
+    InetSocketAddress address;
+    Socket socket;
+    volatile Instant last_heartbeat;
+
+    public static RemoteEngine connect(InetSocketAddress address, String secret, Parameters parameters, System.Logger logger) {
+        try {
+            var engine = new RemoteEngine();
+            engine.address = address;
+            engine._init(() -> engine.open(address, secret), parameters, logger);
+            Thread.ofPlatform().daemon().name("heartbeat-" + engine.id).start(engine::heartbeat);
+            return engine;
+        } catch(IOException ioe) { throw new RuntimeException(ioe); }
+    }
+
+    static Greeting probe(InetSocketAddress address) throws IOException {
+        try (var socket = new Socket()) {
+            socket.connect(address, (int) heartbeatTimeout.toMillis());
+            socket.setSoTimeout((int) heartbeatTimeout.toMillis());
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            return Greeting.parse(reader.readLine());
+        }
+    }
+
+    void open(InetSocketAddress address, String secret) throws IOException {
+        socket = new Socket();
+        socket.connect(address, (int) heartbeatTimeout.toMillis());
+        socket.setTcpNoDelay(true);
+        id = address.getHostString() + ":" + address.getPort();
+        input = socket.getInputStream();
+        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        var greeting = Greeting.parse(readLine(input));
+        if (greeting.free() == 0) {
+            socket.close();
+            throw new IOException("No free slots at %s".formatted(id));
+        }
+        last_heartbeat = Instant.now();
+        send(Worker.CONNECT + " " + secret);
+    }
+
+    // Reads the greeting without buffering past it, the rest of the stream is left to pump()
+    static String readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.write(b);
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8).stripTrailing();
+    }
+
+    @Override
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ioe) {}
+    }
+
+    @Override
+    boolean control(String line) {
+        if (line.equals(Worker.PONG)) {
+            last_heartbeat = Instant.now();
+            return true;
+        }
+        return false;
+    }
+
+    void heartbeat() {
+        while (alive) {
+            try {
+                Thread.sleep(heartbeatInterval.toMillis());
+                if (! alive) return;
+                if (Duration.between(last_heartbeat, Instant.now()).compareTo(heartbeatTimeout) > 0) {
+                    logger.log(Level.WARNING, () -> "Worker %s missed heartbeats, disconnecting".formatted(id));
+                    terminate();
+                    return;
+                }
+                synchronized (writer) {
+                    writer.write(Worker.PING);
+                    writer.newLine();
+                    writer.flush();
+                }
+            } catch (IOException ioe) {
+                logger.log(Level.WARNING, () -> "Worker %s unreachable, disconnecting".formatted(id));
+                terminate();
+                return;
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.*;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParentCommand;
+
+@CommandLine.Command(name = "replay", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true,
+        description = "Replay a trace recorded with --record through the provider against a local stand-in broker")
+class Replay implements Runnable {
+
+    // What the broker saw of one job, in nanos
+    static class Timing {
+        final String id;
+        final Trace.Entry entry;
+        volatile long released, acquired, firstByte, finished;
+        volatile long bytes;
+
+        Timing(String id, Trace.Entry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+
+    // Serves the trace over HTTP the way the Lichess API and broker would. Each job becomes
+    // available at its time in the trace divided by the speed, counted from the first acquire.
+    // Answers of infinite jobs are cut off like a client leaving the analysis.
+    static class Broker implements HttpHandler {
+
+        static final Pattern PROVIDER_SECRET = Pattern.compile("\"providerSecret\"\\s*:\\s*\"([^\"]*)\"");
+
+        final List<Trace.Entry> entries;
+        final double speed;
+        final Duration maxInfinite;
+        final HttpServer server;
+        final Map<String, BlockingQueue<Timing>> available = new ConcurrentHashMap<>();
+        final Map<String, String> engines = new ConcurrentHashMap<>();
+        final Map<String, Timing> jobs = new ConcurrentHashMap<>();
+        final CountDownLatch done;
+        final AtomicInteger ids = new AtomicInteger();
+        boolean started;
+
+        Broker(List<Trace.Entry> entries, double speed, Duration maxInfinite) throws IOException {
+            this.entries = entries;
+            this.speed = speed;
+            this.maxInfinite = maxInfinite;
+            done = new CountDownLatch(entries.size());
+            // An answer which is cut off should close its connection, not be read to the end
+            if (System.getProperty("sun.net.httpserver.drainAmount") == null)
+                System.setProperty("sun.net.httpserver.drainAmount", "0");
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/api/external-engine", this);
+            server.setExecutor(Executors.newCachedThreadPool(runnable -> Thread.ofPlatform().daemon().unstarted(runnable)));
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        static String secret(int registration) {
+            return "replay-" + registration;
+        }
+
+        BlockingQueue<Timing> queue(String secret) {
+            return available.computeIfAbsent(secret, __ -> new LinkedBlockingQueue<>());
+        }
+
+        synchronized void release() {
+            if (started) return;
+            started = true;
+            Thread.ofPlatform().daemon().name("replay-release").start(() -> {
+                long start = System.nanoTime();
+                long first = entries.isEmpty() ? 0 : entries.get(0).millis();
+                for (var entry : entries) {
+                    long wait = start + (long) ((entry.millis() - first) * 1_000_000 / speed) - System.nanoTime();
+                    if (wait > 0) {
+                        try { Thread.sleep(Duration.ofNanos(wait)); } catch (InterruptedException ie) { return; }
+                    }
+                    var timing = new Timing("r" + ids.incrementAndGet(), entry);
+                    timing.released = System.nanoTime();
+                    jobs.put(timing.id, timing);
+                    queue(secret(entry.registration())).add(timing);
+                }
+            });
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                String method = exchange.getRequestMethod();
+                if (path.equals("/api/external-engine/work")) {
+                    acquire(exchange);
+                } else if (path.startsWith("/api/external-engine/work/") && jobs.get(path.substring(path.lastIndexOf('/') + 1)) instanceof Timing timing) {
+                    answer(exchange, timing);
+                } else if (path.equals("/api/external-engine") && method.equals("GET")) {
+                    respond(exchange, 200, "[]");
+                } else if (path.equals("/api/external-engine") && method.equals("POST")) {
+                    respond(exchange, 200, register("replay-engine-" + engines.size(), body(exchange)));
+                } else if (path.startsWith("/api/external-engine/") && method.equals("PUT")) {
+                    respond(exchange, 200, register(path.substring(path.lastIndexOf('/') + 1), body(exchange)));
+                } else {
+                    respond(exchange, 404, "{\"error\":\"Not found\"}");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        // Returns the registration as stored, with the fields Lichess adds
+        String register(String id, String body) {
+            var matcher = PROVIDER_SECRET.matcher(body);
+            var engine = "{\"id\":\"%s\",\"clientSecret\":\"ees_replay\",\"userId\":\"replay\",\"providerData\":null,%s".formatted(
+                    id, body.strip().substring(1));
+            if (matcher.find()) engines.put(matcher.group(1), engine);
+            return engine;
+        }
+
+        void acquire(HttpExchange exchange) throws IOException, InterruptedException {
+            var matcher = PROVIDER_SECRET.matcher(body(exchange));
+            if (! matcher.find()) {
+                respond(exchange, 400, "{\"error\":\"Missing providerSecret\"}");
+                return;
+            }
+            release();
+            String secret = matcher.group(1);
+            var timing = queue(secret).poll(1, TimeUnit.SECONDS);
+            if (timing == null) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            timing.acquired = System.nanoTime();
+            var entry = timing.entry;
+            respond(exchange, 200, """
+                    {"id":"%s","work":{"sessionId":"%s","threads":%d,"hash":%d,"infinite":%b,"multiPv":%d,"variant":"%s","initialFen":"%s","moves":[%s]},"engine":%s}"""
+                    .formatted(timing.id, entry.session(), entry.threads(), entry.hash(), entry.infinite(), entry.multiPv(),
+                        entry.variant(), entry.initialFen(),
+                        entry.moves().stream().map(move -> "\"" + move + "\"").collect(Collectors.joining(",")),
+                        engines.getOrDefault(secret, "{}")));
+        }
+
+        void answer(HttpExchange exchange, Timing timing) throws IOException {
+            long deadline = timing.entry.infinite()
+                ? System.nanoTime() + (long) (maxInfinite.toNanos() / speed)
+                : Long.MAX_VALUE;
+            var in = exchange.getRequestBody();
+            var buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (timing.bytes == 0 && read > 0) timing.firstByte = System.nanoTime();
+                    timing.bytes += read;
+                    if (System.nanoTime() > deadline) break;
+                }
+            } catch (IOException ioe) {}
+            timing.finished = System.nanoTime();
+            done.countDown();
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        static String body(HttpExchange exchange) throws IOException {
+            return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        static void respond(HttpExchange exchange, int status, String json) throws IOException {
+            var bytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    static System.Logger logging = System.getLogger("Replay");
+
+    @ParentCommand CLI cli;
+
+    public void run() {
+        Main main = null;
+        try {
+            var entries = Trace.read(trace);
+            if (entries.isEmpty()) {
+                System.out.println("No jobs in " + trace);
+                return;
+            }
+            var broker = new Broker(entries, speed, Duration.ofSeconds(maxInfinite));
+            var url = broker.url();
+            var api = chariot.Client.auth(c -> c
+                    .api(url)
+                    .servers(s -> s.engine(url))
+                    .auth("replay")).externalEngine();
+
+            int count = entries.stream().mapToInt(Trace.Entry::registration).max().orElse(0) + 1;
+            List<Main.Registration> registrations = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                registrations.add(new Main.Registration(Broker.secret(i), api, Broker.secret(i), null, cli.defaultDepth, List.of(), 1));
+
+            int size = cli.poolSize == null ? count : cli.poolSize;
+            main = new Main(Path.of(cli.enginecmd), cli.parameters(size), size, cli.workerList(),
+                    cli.policy(), registrations);
+            main.pool.autoSize(cli.autoThreads, cli.autoHash);
+            main.pool.workerSecret = cli.workerSecret;
+            main.scheduler.tablebase = cli.tablebase();
+            main.scheduler.answers = cli.answers();
+            Runtime.getRuntime().addShutdownHook(new Thread(main.pool::terminateAll));
+
+            long span = entries.get(entries.size() - 1).millis() - entries.get(0).millis();
+            logging.log(Level.INFO, () -> "Replaying %d jobs spanning %.1f s at %.1fx against %s".formatted(
+                        entries.size(), span / 1000d, speed, url));
+
+            Thread.ofPlatform().daemon().name("replay-provider").start(main);
+            long start = System.nanoTime();
+            boolean complete = broker.done.await((long) (span / speed) + grace * 1000L, TimeUnit.MILLISECONDS);
+            long elapsed = System.nanoTime() - start;
+            report(broker.jobs.values(), entries.size(), elapsed, complete, main);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (main != null) main.pool.terminateAll();
+        }
+    }
+
+    void report(Collection<Timing> timings, int total, long elapsed, boolean complete, Main main) {
+        var finished = timings.stream().filter(timing -> timing.finished != 0).toList();
+        double seconds = elapsed / 1e9;
+        System.out.println("Replayed %d of %d jobs in %.1f s at %.1fx, %.2f jobs/s%s".formatted(
+                    finished.size(), total, seconds, speed, finished.size() / seconds,
+                    complete ? "" : " (timed out waiting for the rest)"));
+        System.out.println(percentiles("Queue wait", finished, timing -> timing.acquired - timing.released));
+        System.out.println(percentiles("First info", finished.stream().filter(timing -> timing.firstByte != 0).toList(),
+                    timing -> timing.firstByte - timing.released));
+        System.out.println(percentiles("Depth answered", finished.stream().filter(timing -> ! timing.entry.infinite()).toList(),
+                    timing -> timing.finished - timing.released));
+        System.out.println("%d joined a running search, %d answered from the tablebase, %s%d empty answers, %d abandoned, %d stopped at deadline, %s, %s".formatted(
+                    main.scheduler.joined.sum(),
+                    main.pool.stats.tablebaseHits.sum(),
+                    main.scheduler.answers == null ? "" : main.scheduler.answers.report() + ", ",
+                    finished.stream().filter(timing -> timing.bytes == 0).count(),
+                    main.pool.stats.abandoned.sum(),
+                    main.pool.stats.expired.sum(),
+                    main.pool.stats.usage(),
+                    main.pool.affinityStats.report()));
+    }
+
+    static String percentiles(String name, List<Timing> timings, ToLongFunction<Timing> nanos) {
+        if (timings.isEmpty()) return "%-15s no jobs".formatted(name);
+        long[] millis = timings.stream().mapToLong(nanos).map(n -> n / 1_000_000).sorted().toArray();
+        return "%-15s p50 %6d ms  p90 %6d ms  p99 %6d ms  max %6d ms  (%d jobs)".formatted(name,
+                millis[(int) (millis.length * 0.50)], millis[(int) (millis.length * 0.90)],
+                millis[(int) (millis.length * 0.99)], millis[millis.length - 1], millis.length);
+    }
+
+    @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+    @Parameters(paramLabel = "trace", description = "Trace file recorded with --record") Path trace;
+    @Option(names = {"--speed"}, defaultValue = "1", description = "Replay speed, 2 releases the jobs twice as fast as recorded") double speed;
+    @Option(names = {"--max-infinite"}, defaultValue = "30", description = "Seconds at 1x after which the answer of an infinite job is cut off") long maxInfinite;
+    @Option(names = {"--grace"}, defaultValue = "120", description = "Seconds to wait for the last answers after the trace has been released") long grace;
+}
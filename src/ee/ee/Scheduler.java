@@ -0,0 +1,582 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import chariot.model.*;
+import ee.Main.Registration;
+
+class Scheduler {
+
+    // A maximum time of zero means no deadline. Split multipv spreads the root moves of
+    // multipv jobs over idle engines. An infinite job preempted for another one starts over
+    // from depth 1 when its session asks again, so it gets a longer slice against those.
+    record Policy(Duration minSlice, Duration minInfiniteSlice, int maxQueue, Duration maxInfinite, Duration maxDepth, boolean splitMultiPv) {
+        static Policy defaults() { return new Policy(Duration.ofSeconds(3), Duration.ofSeconds(60), 64, Duration.ZERO, Duration.ZERO, false); }
+
+        Duration slice(Job victim, Job waiting) {
+            return victim.work().infinite() && waiting.work().infinite() ? minInfiniteSlice : minSlice;
+        }
+
+        Duration maxTime(Job job) { return job.work().infinite() ? maxInfinite : maxDepth; }
+    }
+
+    static class Job {
+        final Registration registration;
+        final ExternalEngineRequest request;
+        final Instant queued = Instant.now();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Instant started;
+        Engine engine;
+        // Extra engines of a split search, searching some of the root moves each
+        List<Engine> helpers = List.of();
+        volatile Split split;
+        Flight flight;
+        ScheduledFuture<?> deadline;
+
+        Job(Registration registration, ExternalEngineRequest request) {
+            this.registration = registration;
+            this.request = request;
+        }
+
+        String id() { return request.id(); }
+        ExternalEngineWork work() { return request.work(); }
+
+        // Depth limited jobs finish by themselves and go before infinite ones
+        int priority() { return work().infinite() ? 1 : 0; }
+
+        Duration queueWait() {
+            return Duration.between(queued, started == null ? Instant.now() : started);
+        }
+
+        Duration runTime() {
+            return started == null ? Duration.ZERO : Duration.between(started, Instant.now());
+        }
+
+        // Reconfiguring makes new registrations with the same secret
+        boolean sameRegistration(Registration other) {
+            return registration.secret().equals(other.secret());
+        }
+
+        boolean sameSession(Job other) {
+            return sameRegistration(other.registration) && work().sessionId().equals(other.work().sessionId());
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            if (split instanceof Split running) running.stop();
+            if (engine != null) engine.stop();
+        }
+
+        int threads() {
+            return engine.threads + helpers.stream().mapToInt(helper -> helper.threads).sum();
+        }
+    }
+
+    static int maxAttempts = 3;
+    // How long a job whose engine failed waits for another one, before its answer is closed
+    static Duration failoverTimeout = Duration.ofSeconds(30);
+    static int reportInterval = 50;
+
+    Pool pool;
+    Policy policy;
+    Syzygy tablebase;
+    Answers answers;
+    List<Job> queue = new ArrayList<>();
+    List<Job> running = new ArrayList<>();
+    List<Job> failover = new ArrayList<>();
+    Map<Flight.Key, Flight> flights = new HashMap<>();
+    // By the secret of the registration
+    Map<String, Double> pass = new HashMap<>();
+    double virtualTime = 0;
+    Lock lock = new ReentrantLock();
+    Condition assigned = lock.newCondition();
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            runnable -> Thread.ofPlatform().daemon().name("scheduler").unstarted(runnable));
+    Instant recheck = Instant.MAX;
+    AtomicLong jobs = new AtomicLong();
+    LongAdder goMillis = new LongAdder();
+    LongAdder goJobs = new LongAdder();
+    LongAdder joined = new LongAdder();
+    LongAdder reattached = new LongAdder();
+    LongAdder splits = new LongAdder();
+    System.Logger logger;
+
+    Scheduler(Pool pool, Policy policy, System.Logger logger) {
+        this.pool = pool;
+        this.policy = policy;
+        this.logger = logger;
+        // Engines start in the background, a waiting job gets one once it is up
+        pool.started = () -> {
+            lock.lock();
+            try {
+                dispatch();
+                preempt();
+                publish();
+            } finally {
+                lock.unlock();
+            }
+        };
+    }
+
+    void submit(Job job) {
+        byte[] tablebaseAnswer = probe(job);
+        lock.lock();
+        try {
+            // Identical jobs share one search, queued or running
+            var key = Flight.Key.of(job);
+            var flight = flights.get(key);
+            boolean join = tablebaseAnswer == null && flight != null && ! flight.leader.cancelled.get();
+
+            // Last job wins within a session. A session asking again for the search it already
+            // has, after a reload, joins it before its previous job leaves, so it goes on. Its
+            // answer is subscribed first too, a search left without subscribers is stopped.
+            if (join) {
+                job.flight = flight;
+                flight.jobs.add(job);
+                if (flight.leader.started != null || flight.seeded()) answer(flight, job);
+            }
+            Job replaced = null;
+            for (var other : List.copyOf(flights.values()))
+                for (var previous : List.copyOf(other.jobs))
+                    if (previous != job && previous.sameSession(job)) {
+                        if (other == flight) replaced = previous;
+                        leave(other, previous);
+                    }
+
+            if (tablebaseAnswer != null) {
+                logger.log(Level.INFO, () -> "Job %s answered from the tablebase".formatted(job.id()));
+                pool.stats.jobs.increment();
+                answer(job, tablebaseAnswer);
+                publish();
+                return;
+            }
+
+            if (join) {
+                joined.increment();
+                if (replaced instanceof Job previous) {
+                    reattached.increment();
+                    logger.log(Level.INFO, () -> "Job %s took over the search of job %s from the same session".formatted(
+                                job.id(), previous.id()));
+                } else {
+                    logger.log(Level.INFO, () -> "Job %s joined the search of job %s, %d jobs".formatted(
+                                job.id(), job.flight.leader.id(), job.flight.jobs.size()));
+                }
+                pool.stats.jobs.increment();
+                publish();
+                return;
+            }
+
+            // A depth limited job asking for no more than a stored answer needs no engine
+            var stored = answers == null ? null : answers.get(key);
+            if (stored != null && ! job.work().infinite() && stored.depth() >= key.depth()) {
+                logger.log(Level.INFO, () -> "Job %s answered from a stored answer of depth %d".formatted(job.id(), stored.depth()));
+                answers.answered.increment();
+                pool.stats.jobs.increment();
+                answer(job, stored.bytes());
+                publish();
+                return;
+            }
+
+            if (queue.size() >= policy.maxQueue()) {
+                logger.log(Level.WARNING, () -> "Queue full (%d jobs), rejecting job %s".formatted(queue.size(), job.id()));
+                pool.stats.rejected.increment();
+                reject(job);
+                return;
+            }
+
+            job.flight = new Flight(key, job, pool.stats);
+            flights.put(job.flight.key, job.flight);
+            if (stored != null) {
+                logger.log(Level.INFO, () -> "Job %s starts from a stored answer of depth %d".formatted(job.id(), stored.depth()));
+                answers.seeded.increment();
+                job.flight.seed(stored);
+                answer(job.flight, job);
+            }
+            pass.put(job.registration.secret(), Math.max(pass.getOrDefault(job.registration.secret(), 0d), virtualTime));
+            queue.add(job);
+
+            dispatch();
+            preempt();
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The search goes on as long as any job still wants its answer
+    void leave(Flight flight, Job job) {
+        flight.jobs.remove(job);
+        flight.unsubscribe(job);
+        // Its answer is only sent once the search starts, the request is closed like a rejected one
+        if (flight.leader.started == null && ! flight.seeded()) reject(job);
+        if (! flight.jobs.isEmpty()) return;
+        if (queue.remove(flight.leader)) {
+            flights.remove(flight.key, flight);
+        } else {
+            if (! flight.leader.cancelled.get()) reclaimed(flight.leader);
+            flight.leader.cancel();
+        }
+    }
+
+    // The answer of a job ended before its search did, the client left or the upload failed
+    void abandoned(Flight flight, Job job) {
+        lock.lock();
+        try {
+            if (flights.get(flight.key) != flight || ! flight.jobs.contains(job)) return;
+            logger.log(Level.INFO, () -> "Answer of job %s ended before its search".formatted(job.id()));
+            pool.stats.abandoned.increment();
+            leave(flight, job);
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ends a search which ran out of time, its jobs keep the answer so far
+    void expire(Job job) {
+        lock.lock();
+        try {
+            if (! running.contains(job) || job.cancelled.get()) return;
+            logger.log(Level.INFO, () -> "Stopping job %s at its deadline after %d ms".formatted(job.id(), job.runTime().toMillis()));
+            pool.stats.expired.increment();
+            job.cancel();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Counts the engine threads times what was left until the deadline of a search stopped early
+    void reclaimed(Job job) {
+        var maxTime = policy.maxTime(job);
+        if (job.started == null || job.engine == null || maxTime.isZero()) return;
+        var left = Duration.between(Instant.now(), job.started.plus(maxTime));
+        if (! left.isNegative()) pool.stats.reclaimedCpuMillis.add(left.toMillis() * job.threads());
+    }
+
+    // Endgames within the tablebase are answered without an engine, outside the lock
+    byte[] probe(Job job) {
+        var pos = tablebase == null ? null : tablebase.covered(job.work());
+        if (pos == null) return null;
+        long start = System.nanoTime();
+        var answer = tablebase.answer(job.work(), pos, job.registration.defaultDepth());
+        pool.stats.tablebase(System.nanoTime() - start, answer != null);
+        return answer;
+    }
+
+    void answer(Job job, byte[] answer) {
+        Thread.ofPlatform().daemon().start(() -> {
+            try {
+                Main.ok(job.registration.api().answer(job.id(), new ByteArrayInputStream(answer)));
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "Error while trying to answer", e);
+            }
+        });
+    }
+
+    void reject(Job job) {
+        Thread.ofPlatform().daemon().start(() -> {
+            try {
+                Main.ok(job.registration.api().answer(job.id(), InputStream.nullInputStream()));
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "Error while rejecting job", e);
+            }
+        });
+    }
+
+    Comparator<Job> order() {
+        return Comparator.comparingInt(Job::priority)
+            .thenComparingDouble(job -> pass.getOrDefault(job.registration.secret(), 0d))
+            .thenComparingLong(job -> running.stream().filter(other -> other.sameSession(job)).count())
+            .thenComparing(job -> job.queued);
+    }
+
+    // A running job may be preempted for a waiting one if it is of a lower priority class,
+    // or if both are infinite and from different sessions, but only after its minimum time slice
+    boolean preemptible(Job victim, Job waiting) {
+        if (victim.cancelled.get() || victim.sameSession(waiting)) return false;
+        return victim.priority() > waiting.priority()
+            || (victim.priority() == waiting.priority() && victim.work().infinite());
+    }
+
+    void preempt() {
+        long stopping = running.stream().filter(job -> job.cancelled.get()).count();
+        var waiting = queue.stream().sorted(order()).skip(stopping).toList();
+        if (waiting.isEmpty() || pool.available()) return;
+
+        Instant next = Instant.MAX;
+        for (var job : waiting) {
+            var candidates = running.stream()
+                .filter(victim -> preemptible(victim, job))
+                .toList();
+
+            var victim = candidates.stream()
+                .filter(candidate -> candidate.runTime().compareTo(policy.slice(candidate, job)) >= 0)
+                .max(Comparator.comparingInt(Job::priority)
+                        .thenComparingDouble(candidate -> share(candidate.registration))
+                        .thenComparingInt(candidate -> -candidate.flight.jobs.size())
+                        .thenComparing(Job::runTime));
+
+            if (victim.isPresent()) {
+                logger.log(Level.INFO, () -> "Preempting job %s after %d ms for job %s".formatted(
+                            victim.get().id(), victim.get().runTime().toMillis(), job.id()));
+                victim.get().cancel();
+            } else {
+                for (var candidate : candidates)
+                    if (candidate.started.plus(policy.slice(candidate, job)).isBefore(next))
+                        next = candidate.started.plus(policy.slice(candidate, job));
+            }
+        }
+
+        if (next.isBefore(recheck)) {
+            recheck = next;
+            timer.schedule(() -> {
+                lock.lock();
+                try {
+                    recheck = Instant.MAX;
+                    dispatch();
+                    preempt();
+                    publish();
+                } finally {
+                    lock.unlock();
+                }
+            }, Math.max(0, Duration.between(Instant.now(), next).toMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    double share(Registration registration) {
+        return running.stream()
+            .filter(job -> job.sameRegistration(registration))
+            .filter(job -> ! job.cancelled.get())
+            .count() / (double) registration.weight();
+    }
+
+    // Forgets the passes of registrations which are gone
+    void registrations(List<Registration> registrations) {
+        lock.lock();
+        try {
+            var secrets = registrations.stream().map(Registration::secret).toList();
+            pass.keySet().retainAll(secrets);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Engine lease(Job job) {
+        return pool.lease(job.work().sessionId());
+    }
+
+    void dispatch() {
+        for (var job : failover) {
+            if (job.engine != null) continue;
+            var engine = lease(job);
+            if (engine == null) return;
+            job.engine = engine;
+            assigned.signalAll();
+        }
+
+        while (! queue.isEmpty()) {
+            var job = queue.stream().min(order()).orElseThrow();
+
+            var engine = lease(job);
+            if (engine == null) return;
+
+            queue.remove(job);
+            virtualTime = pass.getOrDefault(job.registration.secret(), 0d);
+            pass.put(job.registration.secret(), virtualTime + 1d / job.registration.weight());
+
+            job.engine = engine;
+            split(job);
+            job.started = Instant.now();
+            running.add(job);
+            var maxTime = policy.maxTime(job);
+            if (! maxTime.isZero())
+                job.deadline = timer.schedule(() -> expire(job), maxTime.toMillis(), TimeUnit.MILLISECONDS);
+            start(job);
+        }
+    }
+
+    // Only when nothing else waits, a multipv job takes idle engines to search its root moves with
+    void split(Job job) {
+        int lines = job.work().multiPv();
+        if (! policy.splitMultiPv() || lines < 2 || ! queue.isEmpty()) return;
+        var moves = Split.rootMoves(job.work());
+        List<Engine> engines = new ArrayList<>(List.of(job.engine));
+        Engine helper;
+        while (engines.size() < Math.min(lines, moves.size()) && (helper = pool.spare()) != null)
+            engines.add(helper);
+        if (engines.size() == 1) return;
+        job.helpers = List.copyOf(engines.subList(1, engines.size()));
+        job.split = new Split(job.work(), engines, moves, job.flight);
+        splits.increment();
+        logger.log(Level.INFO, () -> "Splitting the %d root moves of job %s over %d engines".formatted(
+                    moves.size(), job.id(), engines.size()));
+    }
+
+    // Gives back the helpers of a split search which failed, the job goes on with its own engine
+    void unsplit(Job job) {
+        lock.lock();
+        try {
+            job.split = null;
+            job.helpers.forEach(pool::release);
+            job.helpers = List.of();
+            dispatch();
+            preempt();
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void publish() {
+        pool.stats.queued = queue.size();
+        pool.stats.running = running.size();
+    }
+
+    void finished(Job job) {
+        lock.lock();
+        try {
+            running.remove(job);
+            if (job.deadline != null) job.deadline.cancel(false);
+            flights.remove(job.flight.key, job.flight);
+            if (job.engine != null) pool.release(job.engine);
+            job.helpers.forEach(pool::release);
+            dispatch();
+            preempt();
+            publish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves a job whose engine failed to another engine, keeping its answer stream.
+    // Gives up at the deadline of the job, or when no engine turns up in time.
+    Engine failover(Job job) {
+        var giveUp = Instant.now().plus(failoverTimeout);
+        var maxTime = policy.maxTime(job);
+        if (! maxTime.isZero() && job.started != null && job.started.plus(maxTime).isBefore(giveUp))
+            giveUp = job.started.plus(maxTime);
+        lock.lock();
+        try {
+            pool.release(job.engine);
+            job.engine = null;
+            failover.add(job);
+            dispatch();
+            while (job.engine == null && ! job.cancelled.get() && Instant.now().isBefore(giveUp)) {
+                try {
+                    assigned.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (job.engine == null) dispatch();
+            }
+            if (job.engine == null && ! job.cancelled.get())
+                logger.log(Level.WARNING, () -> "No engine to fail job %s over to, giving up".formatted(job.id()));
+            failover.remove(job);
+            if (job.engine != null && job.cancelled.get()) {
+                pool.release(job.engine);
+                job.engine = null;
+            }
+            return job.engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void start(Job job) {
+        var registration = job.registration;
+        var flight = job.flight;
+        logger.log(Level.INFO, () -> "Handling job %s for %s after %d ms in queue, %d jobs".formatted(
+                    job.id(), registration.name(), job.queueWait().toMillis(), flight.jobs.size()));
+        if (! flight.seeded())
+            for (var subscriber : flight.jobs)
+                answer(flight, subscriber);
+
+        Thread.ofPlatform().name("engine-to-request-body").start(() -> {
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        var search = job.split instanceof Split split
+                            ? split.run(registration.defaultDepth())
+                            : job.engine.analyse(job.work(), registration.defaultDepth(), job.cancelled, flight);
+                        pool.affinityStats.record(search);
+                        if (search.used() instanceof Proc used) {
+                            int threads = job.engine.threads;
+                            logger.log(Level.DEBUG, () -> "Job %s used %s".formatted(job.id(), used.report(threads)));
+                            if (used.trouble() instanceof String trouble)
+                                logger.log(Level.WARNING, () -> "Job %s on engine %s %s".formatted(job.id(), job.engine.id, trouble));
+                        }
+                        if (search.depth() > 0) {
+                            var acquireToGo = Duration.between(job.queued, search.go());
+                            logger.log(Level.DEBUG, () -> "Job %s went from acquire to go in %d ms".formatted(job.id(), acquireToGo.toMillis()));
+                            goMillis.add(acquireToGo.toMillis());
+                            goJobs.increment();
+                        }
+                        pool.stats.jobs.increment();
+                        if (jobs.incrementAndGet() % reportInterval == 0) {
+                            logger.log(Level.INFO, () -> "Served %d jobs, %d joined a running search (%d of their own session), %d split over engines, avg %d ms from acquire to go (%s), %d abandoned, %d stopped at deadline, %d cpu seconds reclaimed, %d of %d tablebase probes answered, %s%s, %s".formatted(
+                                        jobs.get() + joined.sum(),
+                                        joined.sum(),
+                                        reattached.sum(),
+                                        splits.sum(),
+                                        goMillis.sum() / Math.max(1, goJobs.sum()),
+                                        Engine.pipelined ? "pipelined" : "not pipelined",
+                                        pool.stats.abandoned.sum(),
+                                        pool.stats.expired.sum(),
+                                        pool.stats.reclaimedCpuMillis.sum() / 1000,
+                                        pool.stats.tablebaseHits.sum(),
+                                        pool.stats.tablebaseProbes.sum(),
+                                        answers == null ? "" : answers.report() + ", ",
+                                        pool.stats.usage(),
+                                        pool.affinityStats.report()));
+                            if (pool.processes() instanceof String processes)
+                                logger.log(Level.INFO, () -> "Engine processes: %s".formatted(processes));
+                        }
+                        break;
+                    } catch (IOException ioe) {
+                        if (job.split != null && ! job.cancelled.get()) {
+                            logger.log(Level.WARNING, () -> "Split search of job %s failed, going on with one engine: %s".formatted(job.id(), ioe.getMessage()));
+                            unsplit(job);
+                            if (job.engine.alive) continue;
+                        }
+                        if (job.engine.alive || job.cancelled.get() || attempt == maxAttempts) throw ioe;
+                        var failed = job.engine.id;
+                        if (failover(job) == null) throw ioe;
+                        logger.log(Level.WARNING, () -> "Job %s failed over from %s to %s".formatted(job.id(), failed, job.engine.id));
+                    }
+                }
+            } catch (IOException ioe) {
+                logger.log(Level.ERROR, "Error while analysing", ioe);
+            } finally {
+                // Also when the search was left, the lines it reached are as good
+                if (answers != null) answers.put(flight.key, flight.answer());
+                finished(job);
+                flight.close();
+            }
+        });
+    }
+
+    // Each job answers from its own pipe, fed by the shared search
+    void answer(Flight flight, Job job) {
+        try {
+            var subscriber = new Flight.Subscriber(job);
+            Thread.ofPlatform().daemon().start(() -> {
+                try (var in = subscriber.in) {
+                    Main.ok(job.registration.api().answer(job.id(), in));
+                } catch (Exception e) {
+                    logger.log(Level.ERROR, "Error while trying to answer", e);
+                } finally {
+                    abandoned(flight, job);
+                }
+            });
+            flight.subscribe(subscriber);
+        } catch (IOException ioe) {
+            logger.log(Level.ERROR, "Error while trying to answer", ioe);
+        }
+    }
+}
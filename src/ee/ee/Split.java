@@ -0,0 +1,237 @@
+package ee;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import chariot.model.ExternalEngineWork;
+
+// A multipv search with its root moves dealt out to several engines, each searching its share
+// with go searchmoves. A part reports as many lines as were asked for, or as it has moves, as
+// the best lines may all be among its moves. Once every part has completed a depth the lines
+// of all parts are ranked together and written as one multipv answer.
+class Split {
+
+    // A line of a part, the scores of different parts compare as they search the same position
+    record Info(int depth, int selDepth, int multiPv, String score, int value, long nodes, long nps, long time, String pv) {
+
+        // Null for a line which isn't a score of the line, or only a bound of it
+        static Info parse(String line) {
+            var tokens = line.split(" ");
+            int depth = 0, selDepth = 0, multiPv = 1, value = 0;
+            long nodes = 0, nps = 0, time = 0;
+            String score = null, pv = "";
+            try {
+                for (int i = 1; i < tokens.length; i++) {
+                    switch (tokens[i]) {
+                        case "depth" -> depth = Integer.parseInt(tokens[++i]);
+                        case "seldepth" -> selDepth = Integer.parseInt(tokens[++i]);
+                        case "multipv" -> multiPv = Integer.parseInt(tokens[++i]);
+                        case "score" -> {
+                            var kind = tokens[++i];
+                            int n = Integer.parseInt(tokens[++i]);
+                            score = kind + " " + n;
+                            // Mates beyond any centipawn score, the quicker the better
+                            value = kind.equals("mate") ? (n > 0 ? 100_000 - n : -100_000 - n) : n;
+                        }
+                        case "lowerbound", "upperbound" -> { return null; }
+                        case "nodes" -> nodes = Long.parseLong(tokens[++i]);
+                        case "nps" -> nps = Long.parseLong(tokens[++i]);
+                        case "time" -> time = Long.parseLong(tokens[++i]);
+                        case "pv" -> {
+                            pv = String.join(" ", Arrays.asList(tokens).subList(i + 1, tokens.length));
+                            i = tokens.length;
+                        }
+                        default -> {}
+                    }
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+            return score == null || pv.isEmpty() ? null : new Info(depth, selDepth, multiPv, score, value, nodes, nps, time, pv);
+        }
+    }
+
+    // Takes the lines of one engine, which writes and flushes them one by one
+    class Part extends OutputStream {
+        final Engine engine;
+        final List<String> moves;
+        final ExternalEngineWork work;
+        final Info[] latest;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Part(Engine engine, List<String> moves) {
+            this.engine = engine;
+            this.moves = moves;
+            var whole = Split.this.work;
+            latest = new Info[Math.min(multiPv, moves.size())];
+            work = new ExternalEngineWork(whole.sessionId(), whole.threads(), whole.hash(), whole.infinite(),
+                    latest.length, whole.variant(), whole.initialFen(), whole.moves());
+        }
+
+        @Override
+        public void write(int b) {
+            line.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            line.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            var text = line.toString(StandardCharsets.US_ASCII).strip();
+            line.reset();
+            accept(this, text);
+        }
+
+        // The depth all of its lines have reached
+        int depth() {
+            int depth = Integer.MAX_VALUE;
+            for (var info : latest)
+                depth = Math.min(depth, info == null ? 0 : info.depth());
+            return depth;
+        }
+    }
+
+    final ExternalEngineWork work;
+    final int multiPv;
+    final OutputStream out;
+    final List<Part> parts = new ArrayList<>();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    int depth;
+    boolean pending;
+    boolean closed;
+
+    // Moves are dealt round robin, so each part gets some of the moves generated first
+    Split(ExternalEngineWork work, List<Engine> engines, List<String> moves, OutputStream out) {
+        this.work = work;
+        this.out = out;
+        multiPv = Math.max(1, work.multiPv());
+        for (int i = 0; i < engines.size(); i++) {
+            List<String> share = new ArrayList<>();
+            for (int j = i; j < moves.size(); j += engines.size())
+                share.add(moves.get(j));
+            parts.add(new Part(engines.get(i), share));
+        }
+    }
+
+    // The root moves to deal out, none when the position can't be played out here
+    static List<String> rootMoves(ExternalEngineWork work) {
+        if (! work.variant().equals("chess")) return List.of();
+        try {
+            var position = new Position(work.variant(), work.initialFen());
+            for (var move : work.moves())
+                position.play(move);
+            return position.moves();
+        } catch (RuntimeException e) {
+            return List.of();
+        }
+    }
+
+    // Searches with every engine at once and returns when all parts are done. The depth
+    // of the search is the depth every part completed.
+    Engine.Search run(int depth) throws IOException {
+        var failure = new AtomicReference<IOException>();
+        var threads = new ArrayList<Thread>();
+        for (var part : parts.subList(1, parts.size()))
+            threads.add(Thread.ofPlatform().name("split-" + part.engine.id).start(() -> {
+                try {
+                    part.engine.analyse(part.work, depth, cancelled, part, part.moves);
+                } catch (IOException ioe) {
+                    failure.compareAndSet(null, ioe);
+                    stop();
+                }
+            }));
+
+        var first = parts.get(0);
+        Engine.Search search = null;
+        try {
+            search = first.engine.analyse(first.work, depth, cancelled, first, first.moves);
+        } catch (IOException ioe) {
+            failure.compareAndSet(null, ioe);
+            stop();
+        }
+
+        boolean interrupted = false;
+        for (var thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure.get() != null) throw failure.get();
+
+        // A stopped search ends with the latest lines, whatever depth they are at
+        synchronized (this) {
+            if (pending && ! closed) write();
+            closed = true;
+            return new Engine.Search(search.warm(), this.depth, search.time(), search.go(), search.used());
+        }
+    }
+
+    void stop() {
+        cancelled.set(true);
+        for (var part : parts)
+            part.engine.stop();
+    }
+
+    synchronized void accept(Part part, String line) {
+        if (closed) return;
+        var info = Info.parse(line);
+        if (info == null || info.multiPv() > part.latest.length) return;
+        part.latest[info.multiPv() - 1] = info;
+        pending = true;
+
+        int completed = Integer.MAX_VALUE;
+        for (var each : parts)
+            completed = Math.min(completed, each.depth());
+        if (completed > depth) {
+            depth = completed;
+            write();
+        }
+    }
+
+    // The best lines of all parts, with the nodes and nps of all engines together
+    void write() {
+        pending = false;
+        var ranked = parts.stream()
+            .flatMap(part -> Arrays.stream(part.latest))
+            .filter(Objects::nonNull)
+            .sorted(Comparator.comparingInt(Info::value).reversed())
+            .limit(multiPv)
+            .toList();
+        long nodes = 0, nps = 0, time = 0;
+        for (var part : parts) {
+            long partNodes = 0, partNps = 0;
+            for (var info : part.latest) {
+                if (info == null) continue;
+                partNodes = Math.max(partNodes, info.nodes());
+                partNps = Math.max(partNps, info.nps());
+                time = Math.max(time, info.time());
+            }
+            nodes += partNodes;
+            nps += partNps;
+        }
+        try {
+            for (int i = 0; i < ranked.size(); i++) {
+                var info = ranked.get(i);
+                out.write("info depth %d seldepth %d multipv %d score %s nodes %d nps %d time %d pv %s\n".formatted(
+                            info.depth(), info.selDepth(), i + 1, info.score(), nodes, nps, time, info.pv())
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException ioe) {
+            // No one wants the answer anymore
+            closed = true;
+            stop();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ee;
+
+import java.util.concurrent.atomic.*;
+
+// Live figures written from the engine output path and the scheduler without locks or
+// allocation, and read as a snapshot by whoever displays them.
+class Stats {
+
+    record Snapshot(long nps, int depth, int searching, int queued, int running, long jobs,
+            long lastFirstInfoMillis, long avgFirstInfoMillis, long rejected, long skippedLines,
+            long abandoned, long expired, long reclaimedCpuSeconds,
+            long tablebaseProbes, long tablebaseHits, long avgTablebaseMicros,
+            int busyPercent, int waitPercent, long involuntarySwitches, long majorFaults) {}
+
+    volatile long nps;
+    volatile int depth;
+    volatile long lastFirstInfoNanos;
+    final AtomicInteger searching = new AtomicInteger();
+    final LongAdder firstInfoNanos = new LongAdder();
+    final LongAdder firstInfos = new LongAdder();
+    final LongAdder jobs = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder skippedLines = new LongAdder();
+    final LongAdder abandoned = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder reclaimedCpuMillis = new LongAdder();
+    final LongAdder tablebaseProbes = new LongAdder();
+    final LongAdder tablebaseHits = new LongAdder();
+    final LongAdder tablebaseNanos = new LongAdder();
+    // Of the local engine processes while searching
+    final LongAdder threadNanos = new LongAdder();
+    final LongAdder cpuNanos = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+    final LongAdder involuntarySwitches = new LongAdder();
+    final LongAdder majorFaults = new LongAdder();
+    volatile int queued;
+    volatile int running;
+
+    void firstInfo(long nanos) {
+        lastFirstInfoNanos = nanos;
+        firstInfoNanos.add(nanos);
+        firstInfos.increment();
+    }
+
+    void tablebase(long nanos, boolean hit) {
+        tablebaseProbes.increment();
+        tablebaseNanos.add(nanos);
+        if (hit) tablebaseHits.increment();
+    }
+
+    void usage(Proc used, int threads) {
+        threadNanos.add(used.wallNanos() * threads);
+        cpuNanos.add(used.cpuNanos());
+        waitNanos.add(used.waitNanos());
+        involuntarySwitches.add(used.involuntary());
+        majorFaults.add(used.majorFaults());
+    }
+
+    String usage() {
+        var snapshot = snapshot();
+        return "engines %d%% busy and %d%% waiting for a cpu, %d involuntary context switches, %d major faults".formatted(
+                snapshot.busyPercent(), snapshot.waitPercent(), snapshot.involuntarySwitches(), snapshot.majorFaults());
+    }
+
+    Snapshot snapshot() {
+        long n = firstInfos.sum();
+        return new Snapshot(nps, depth, searching.get(), queued, running, jobs.sum(),
+                lastFirstInfoNanos / 1_000_000, n == 0 ? 0 : firstInfoNanos.sum() / n / 1_000_000,
+                rejected.sum(), skippedLines.sum(),
+                abandoned.sum(), expired.sum(), reclaimedCpuMillis.sum() / 1000,
+                tablebaseProbes.sum(), tablebaseHits.sum(), tablebaseNanos.sum() / Math.max(1, tablebaseProbes.sum()) / 1000,
+                (int) (cpuNanos.sum() * 100 / Math.max(1, threadNanos.sum())),
+                (int) (waitNanos.sum() * 100 / Math.max(1, cpuNanos.sum() + waitNanos.sum())),
+                involuntarySwitches.sum(), majorFaults.sum());
+    }
+}
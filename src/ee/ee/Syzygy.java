@@ -0,0 +1,799 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import chariot.model.ExternalEngineWork;
+
+// Probes Syzygy endgame tablebases memory mapped from a list of directories, the WDL tables
+// for win, draw or loss and the DTZ tables for the distance to the next capture or pawn move.
+// Decoding follows the probing code of Stockfish and Fathom, tables are opened on first use.
+// Positions with castling rights are not in the tables.
+class Syzygy {
+
+    static final byte[] WDL_MAGIC = { 0x71, (byte) 0xE8, 0x23, 0x5D };
+    static final byte[] DTZ_MAGIC = { (byte) 0xD7, 0x66, 0x0C, (byte) 0xA5 };
+
+    // From the side to move, cursed wins and blessed losses are draws by the 50 move rule
+    static final int LOSS = -2, BLESSED_LOSS = -1, DRAW = 0, CURSED_WIN = 1, WIN = 2;
+
+    static final int STM = 1, MAPPED = 2, WIN_PLIES = 4, LOSS_PLIES = 8, WIDE = 16, SINGLE_VALUE = 128;
+    static final int CHANGE_STM = Integer.MIN_VALUE;
+    static final int MAX_DTZ = 1 << 18;
+    static final int TB_CP = 20000;
+
+    static final int[] MAP_PAWNS = new int[64];
+    static final int[] MAP_B1H1H7 = new int[64];
+    static final int[] MAP_A1D1D4 = new int[64];
+    static final int[][] MAP_KK = new int[10][64];
+    static final long[][] BINOMIAL = new long[6][64];
+    static final long[][] LEAD_PAWN_IDX = new long[6][64];
+    static final long[][] LEAD_PAWNS_SIZE = new long[6][4];
+
+    static {
+        int code = 0;
+        for (int sq = 0; sq < 64; sq++)
+            if (offA1H8(sq) < 0) MAP_B1H1H7[sq] = code++;
+
+        code = 0;
+        List<Integer> diagonal = new ArrayList<>();
+        for (int sq = 0; sq <= 27; sq++) {
+            if (offA1H8(sq) < 0 && sq % 8 <= 3) MAP_A1D1D4[sq] = code++;
+            else if (offA1H8(sq) == 0 && sq % 8 <= 3) diagonal.add(sq);
+        }
+        for (int sq : diagonal) MAP_A1D1D4[sq] = code++;
+
+        // The 462 placements of two kings with the first in the a1-d1-d4 triangle,
+        // both on the diagonal last
+        List<int[]> bothOnDiagonal = new ArrayList<>();
+        code = 0;
+        for (int idx = 0; idx < 10; idx++)
+            for (int s1 = 0; s1 <= 27; s1++) {
+                if (MAP_A1D1D4[s1] != idx || (idx == 0 && s1 != 1)) continue;
+                for (int s2 = 0; s2 < 64; s2++) {
+                    if (Math.abs(s1 % 8 - s2 % 8) <= 1 && Math.abs(s1 / 8 - s2 / 8) <= 1) continue;
+                    if (offA1H8(s1) == 0 && offA1H8(s2) > 0) continue;
+                    if (offA1H8(s1) == 0 && offA1H8(s2) == 0) bothOnDiagonal.add(new int[] { idx, s2 });
+                    else MAP_KK[idx][s2] = code++;
+                }
+            }
+        for (int[] pair : bothOnDiagonal) MAP_KK[pair[0]][pair[1]] = code++;
+
+        BINOMIAL[0][0] = 1;
+        for (int n = 1; n < 64; n++)
+            for (int k = 0; k < 6 && k <= n; k++)
+                BINOMIAL[k][n] = (k > 0 ? BINOMIAL[k - 1][n - 1] : 0) + (k < n ? BINOMIAL[k][n - 1] : 0);
+
+        // The leading pawn is the one nearest the edge and among those the lowest
+        int available = 47;
+        for (int leadPawns = 1; leadPawns <= 5; leadPawns++)
+            for (int file = 0; file < 4; file++) {
+                long idx = 0;
+                for (int rank = 1; rank <= 6; rank++) {
+                    int sq = rank * 8 + file;
+                    if (leadPawns == 1) {
+                        MAP_PAWNS[sq] = available--;
+                        MAP_PAWNS[sq ^ 7] = available--;
+                    }
+                    LEAD_PAWN_IDX[leadPawns][sq] = idx;
+                    idx += BINOMIAL[leadPawns - 1][MAP_PAWNS[sq]];
+                }
+                LEAD_PAWNS_SIZE[leadPawns][file] = idx;
+            }
+    }
+
+    static int offA1H8(int sq) {
+        return sq / 8 - sq % 8;
+    }
+
+    // The tables of a position can be missing, or turn out corrupt when opened
+    static class Unavailable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Unavailable() { super(null, null, false, false); }
+    }
+
+    static final Unavailable UNAVAILABLE = new Unavailable();
+
+    // A file mapped in chunks, as one mapping is limited to 2 GiB. The chunks overlap
+    // so that every read of up to 8 bytes falls within one of them.
+    static class Mapped {
+        static final long CHUNK = 1L << 30;
+        final MappedByteBuffer[] chunks;
+        final long size;
+
+        Mapped(Path file) throws IOException {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = channel.size();
+                chunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) / CHUNK)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = i * CHUNK;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, CHUNK + 64));
+                    chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        }
+
+        int u8(long offset) {
+            return chunks[(int) (offset / CHUNK)].get((int) (offset % CHUNK)) & 0xFF;
+        }
+
+        int u16(long offset) {
+            return chunks[(int) (offset / CHUNK)].getShort((int) (offset % CHUNK)) & 0xFFFF;
+        }
+
+        long u32(long offset) {
+            return chunks[(int) (offset / CHUNK)].getInt((int) (offset % CHUNK)) & 0xFFFFFFFFL;
+        }
+
+        long u32be(long offset) {
+            return Integer.reverseBytes(chunks[(int) (offset / CHUNK)].getInt((int) (offset % CHUNK))) & 0xFFFFFFFFL;
+        }
+
+        long u64be(long offset) {
+            return Long.reverseBytes(chunks[(int) (offset / CHUNK)].getLong((int) (offset % CHUNK)));
+        }
+    }
+
+    // How the values of one side to move, and for pawns one file of the leading pawn, are
+    // compressed. Offsets point into the mapped file.
+    static class Pairs {
+        int flags;
+        int maxSymLen, minSymLen;
+        long numBlocks, blockSize, span;
+        long lowestSym, btree, blockLength, blockLengthSize, sparseIndex, sparseIndexSize, data;
+        long[] base64;
+        int[] symlen;
+        final int[] pieces = new int[7];
+        final long[] groupIdx = new long[8];
+        final int[] groupLen = new int[8];
+        final int[] mapIdx = new int[4];
+    }
+
+    // A table named like KRPvKR, with the material of white first
+    static class Table {
+        final boolean dtz;
+        final boolean symmetric;
+        final boolean hasPawns;
+        final boolean hasUniquePieces;
+        final int pieceCount;
+        final int[] pawnCount = new int[2];
+        final Pairs[][] items = new Pairs[2][4];
+        final Mapped map;
+        long dtzMap;
+
+        Table(String name, Path file, boolean dtz) throws IOException {
+            this.dtz = dtz;
+            var sides = name.split("v");
+            symmetric = sides[0].equals(sides[1]);
+            pieceCount = sides[0].length() + sides[1].length();
+            hasPawns = name.indexOf('P') != -1;
+            boolean unique = false;
+            for (var side : sides)
+                for (char type : "PNBRQ".toCharArray())
+                    if (side.chars().filter(c -> c == type).count() == 1) unique = true;
+            hasUniquePieces = unique;
+            // The leading color is the one with fewer pawns, for a better compression
+            int whitePawns = (int) sides[0].chars().filter(c -> c == 'P').count();
+            int blackPawns = (int) sides[1].chars().filter(c -> c == 'P').count();
+            boolean whiteLeads = blackPawns == 0 || (whitePawns > 0 && blackPawns >= whitePawns);
+            pawnCount[0] = whiteLeads ? whitePawns : blackPawns;
+            pawnCount[1] = whiteLeads ? blackPawns : whitePawns;
+
+            map = new Mapped(file);
+            var magic = dtz ? DTZ_MAGIC : WDL_MAGIC;
+            if (map.size % 64 != 16) throw new IOException("Corrupt table %s, size %d".formatted(file, map.size));
+            for (int i = 0; i < magic.length; i++)
+                if ((byte) map.u8(i) != magic[i]) throw new IOException("Corrupt table %s, bad magic".formatted(file));
+            int flags = map.u8(4);
+            if (((flags & 2) != 0) != hasPawns || (! dtz && ((flags & 1) != 0) == symmetric))
+                throw new IOException("Table %s does not match its name".formatted(file));
+            init(5);
+        }
+
+        Pairs get(int stm, int file) {
+            return items[dtz ? 0 : stm][hasPawns ? file : 0];
+        }
+
+        void init(long p) {
+            int sides = ! dtz && ! symmetric ? 2 : 1;
+            int files = hasPawns ? 4 : 1;
+            boolean pp = hasPawns && pawnCount[1] > 0;
+
+            for (int f = 0; f < files; f++) {
+                for (int i = 0; i < sides; i++) items[i][f] = new Pairs();
+                int b0 = map.u8(p), b1 = pp ? map.u8(p + 1) : 0;
+                int[][] order = { { b0 & 0xF, pp ? b1 & 0xF : 0xF }, { b0 >> 4, pp ? b1 >> 4 : 0xF } };
+                p += pp ? 2 : 1;
+                for (int k = 0; k < pieceCount; k++, p++)
+                    for (int i = 0; i < sides; i++)
+                        items[i][f].pieces[k] = i != 0 ? map.u8(p) >> 4 : map.u8(p) & 0xF;
+                for (int i = 0; i < sides; i++) groups(items[i][f], order[i], f);
+            }
+            p += p & 1;
+
+            for (int f = 0; f < files; f++)
+                for (int i = 0; i < sides; i++) p = sizes(items[i][f], p);
+
+            if (dtz) p = dtzMap(p, files);
+
+            for (int f = 0; f < files; f++)
+                for (int i = 0; i < sides; i++) {
+                    items[i][f].sparseIndex = p;
+                    p += items[i][f].sparseIndexSize * 6;
+                }
+            for (int f = 0; f < files; f++)
+                for (int i = 0; i < sides; i++) {
+                    items[i][f].blockLength = p;
+                    p += items[i][f].blockLengthSize * 2;
+                }
+            for (int f = 0; f < files; f++)
+                for (int i = 0; i < sides; i++) {
+                    p = (p + 0x3F) & ~0x3F;
+                    items[i][f].data = p;
+                    p += items[i][f].numBlocks * items[i][f].blockSize;
+                }
+        }
+
+        // Pieces of the same kind form a group, the leading group takes the kings and
+        // another unique piece. Each group is encoded as the ways it can be placed.
+        void groups(Pairs d, int[] order, int f) {
+            int n = 0, firstLen = hasPawns ? 0 : hasUniquePieces ? 3 : 2;
+            d.groupLen[n] = 1;
+            for (int i = 1; i < pieceCount; i++)
+                if (--firstLen > 0 || d.pieces[i] == d.pieces[i - 1]) d.groupLen[n]++;
+                else d.groupLen[++n] = 1;
+            d.groupLen[++n] = 0;
+
+            boolean pp = hasPawns && pawnCount[1] > 0;
+            int next = pp ? 2 : 1;
+            int freeSquares = 64 - d.groupLen[0] - (pp ? d.groupLen[1] : 0);
+            long idx = 1;
+            for (int k = 0; next < n || k == order[0] || k == order[1]; k++) {
+                if (k == order[0]) {
+                    d.groupIdx[0] = idx;
+                    idx *= hasPawns ? LEAD_PAWNS_SIZE[d.groupLen[0]][f] : hasUniquePieces ? 31332 : 462;
+                } else if (k == order[1]) {
+                    d.groupIdx[1] = idx;
+                    idx *= BINOMIAL[d.groupLen[1]][48 - d.groupLen[0]];
+                } else {
+                    d.groupIdx[next] = idx;
+                    idx *= BINOMIAL[d.groupLen[next]][freeSquares];
+                    freeSquares -= d.groupLen[next++];
+                }
+            }
+            d.groupIdx[n] = idx;
+        }
+
+        // The canonical Huffman code and the symbol tree of recursive pairing
+        long sizes(Pairs d, long p) {
+            d.flags = map.u8(p++);
+            if ((d.flags & SINGLE_VALUE) != 0) {
+                d.minSymLen = map.u8(p++);
+                return p;
+            }
+            int n = 0;
+            while (d.groupLen[n] != 0) n++;
+            long tbSize = d.groupIdx[n];
+
+            d.blockSize = 1L << map.u8(p++);
+            d.span = 1L << map.u8(p++);
+            d.sparseIndexSize = (tbSize + d.span - 1) / d.span;
+            int padding = map.u8(p++);
+            d.numBlocks = map.u32(p);
+            p += 4;
+            d.blockLengthSize = d.numBlocks + padding;
+            d.maxSymLen = map.u8(p++);
+            d.minSymLen = map.u8(p++);
+            d.lowestSym = p;
+
+            int lengths = d.maxSymLen - d.minSymLen + 1;
+            d.base64 = new long[lengths];
+            for (int i = lengths - 2; i >= 0; i--)
+                d.base64[i] = (d.base64[i + 1] + map.u16(d.lowestSym + 2L * i) - map.u16(d.lowestSym + 2L * (i + 1))) >>> 1;
+            for (int i = 0; i < lengths; i++)
+                d.base64[i] <<= 64 - i - d.minSymLen;
+            p += 2L * lengths;
+
+            int symbols = map.u16(p);
+            p += 2;
+            d.btree = p;
+            d.symlen = new int[symbols];
+            boolean[] visited = new boolean[symbols];
+            for (int sym = 0; sym < symbols; sym++)
+                if (! visited[sym]) d.symlen[sym] = symlen(d, sym, visited);
+            return p + 3L * symbols + (symbols & 1);
+        }
+
+        int symlen(Pairs d, int sym, boolean[] visited) {
+            visited[sym] = true;
+            int right = right(d, sym);
+            if (right == 0xFFF) return 0;
+            int left = left(d, sym);
+            if (! visited[left]) d.symlen[left] = symlen(d, left, visited);
+            if (! visited[right]) d.symlen[right] = symlen(d, right, visited);
+            return d.symlen[left] + d.symlen[right] + 1;
+        }
+
+        int left(Pairs d, int sym) {
+            return ((map.u8(d.btree + 3L * sym + 1) & 0xF) << 8) | map.u8(d.btree + 3L * sym);
+        }
+
+        int right(Pairs d, int sym) {
+            return (map.u8(d.btree + 3L * sym + 2) << 4) | (map.u8(d.btree + 3L * sym + 1) >> 4);
+        }
+
+        // DTZ values may be stored as an index into a map per result
+        long dtzMap(long p, int files) {
+            dtzMap = p;
+            for (int f = 0; f < files; f++) {
+                var d = get(0, f);
+                if ((d.flags & MAPPED) == 0) continue;
+                if ((d.flags & WIDE) != 0) {
+                    p += p & 1;
+                    for (int i = 0; i < 4; i++) {
+                        d.mapIdx[i] = (int) ((p - dtzMap) / 2 + 1);
+                        p += 2L * map.u16(p) + 2;
+                    }
+                } else {
+                    for (int i = 0; i < 4; i++) {
+                        d.mapIdx[i] = (int) (p - dtzMap + 1);
+                        p += map.u8(p) + 1;
+                    }
+                }
+            }
+            return p + (p & 1);
+        }
+
+        int decompress(Pairs d, long idx) {
+            if ((d.flags & SINGLE_VALUE) != 0) return d.minSymLen;
+
+            // The sparse index points near the block holding idx, every span values
+            long k = idx / d.span;
+            long block = map.u32(d.sparseIndex + 6 * k);
+            long offset = map.u16(d.sparseIndex + 6 * k + 4) + idx % d.span - d.span / 2;
+            while (offset < 0)
+                offset += map.u16(d.blockLength + 2 * --block) + 1;
+            while (offset > map.u16(d.blockLength + 2 * block))
+                offset -= map.u16(d.blockLength + 2 * block++) + 1;
+
+            long ptr = d.data + block * d.blockSize;
+            long buf64 = map.u64be(ptr);
+            ptr += 8;
+            int buf64Size = 64;
+            int sym;
+            while (true) {
+                int len = 0;
+                while (Long.compareUnsigned(buf64, d.base64[len]) < 0) len++;
+                sym = (int) ((buf64 - d.base64[len]) >>> (64 - len - d.minSymLen));
+                sym = (sym + map.u16(d.lowestSym + 2L * len)) & 0xFFFF;
+                if (offset < d.symlen[sym] + 1) break;
+                offset -= d.symlen[sym] + 1;
+                len += d.minSymLen;
+                buf64 <<= len;
+                buf64Size -= len;
+                if (buf64Size <= 32) {
+                    buf64Size += 32;
+                    buf64 |= map.u32be(ptr) << (64 - buf64Size);
+                    ptr += 4;
+                }
+            }
+
+            // The symbol expands into a pair of symbols, recursively, down to the value
+            while (d.symlen[sym] != 0) {
+                int left = left(d, sym);
+                if (offset < d.symlen[left] + 1) {
+                    sym = left;
+                } else {
+                    offset -= d.symlen[left] + 1;
+                    sym = right(d, sym);
+                }
+            }
+            return left(d, sym);
+        }
+
+        // The value of the position, with white as the stronger side unless flipped.
+        // A DTZ table which stores the other side to move gives CHANGE_STM.
+        int probe(Position pos, boolean blackStronger, int wdl) {
+            int[] squares = new int[7], pieces = new int[7];
+            int size = 0, leadPawnsCnt = 0, tbFile = 0;
+            long leadPawns = 0;
+
+            boolean flip = (! pos.white && symmetric) || blackStronger;
+            int flipColor = flip ? 8 : 0, flipSquares = flip ? 56 : 0;
+            int stm = (flip ? 1 : 0) ^ (pos.white ? 0 : 1);
+
+            if (hasPawns) {
+                int pawn = get(0, 0).pieces[0] ^ flipColor;
+                for (int sq = 0; sq < 64; sq++)
+                    if (code(pos.board[sq]) == pawn) {
+                        leadPawns |= 1L << sq;
+                        squares[size++] = sq ^ flipSquares;
+                    }
+                leadPawnsCnt = size;
+                int lead = 0;
+                for (int i = 1; i < leadPawnsCnt; i++)
+                    if (MAP_PAWNS[squares[i]] > MAP_PAWNS[squares[lead]]) lead = i;
+                swap(squares, 0, lead);
+                tbFile = Math.min(squares[0] % 8, 7 - squares[0] % 8);
+            }
+
+            if (dtz && (get(stm, tbFile).flags & STM) != stm && ! (symmetric && ! hasPawns))
+                return CHANGE_STM;
+
+            for (int sq = 0; sq < 64; sq++)
+                if (pos.board[sq] != Position.EMPTY && (leadPawns & (1L << sq)) == 0) {
+                    squares[size] = sq ^ flipSquares;
+                    pieces[size++] = code(pos.board[sq]) ^ flipColor;
+                }
+
+            var d = get(stm, tbFile);
+            for (int i = leadPawnsCnt; i < size - 1; i++)
+                for (int j = i + 1; j < size; j++)
+                    if (d.pieces[i] == pieces[j]) {
+                        swap(pieces, i, j);
+                        swap(squares, i, j);
+                        break;
+                    }
+
+            if (squares[0] % 8 > 3)
+                for (int i = 0; i < size; i++) squares[i] ^= 7;
+
+            long idx;
+            if (hasPawns) {
+                idx = LEAD_PAWN_IDX[leadPawnsCnt][squares[0]];
+                var rest = Arrays.stream(squares, 1, leadPawnsCnt).boxed()
+                    .sorted(Comparator.comparingInt(sq -> MAP_PAWNS[sq])).toList();
+                for (int i = 1; i < leadPawnsCnt; i++) {
+                    squares[i] = rest.get(i - 1);
+                    idx += BINOMIAL[i][MAP_PAWNS[squares[i]]];
+                }
+            } else {
+                if (squares[0] / 8 > 3)
+                    for (int i = 0; i < size; i++) squares[i] ^= 56;
+
+                for (int i = 0; i < d.groupLen[0]; i++) {
+                    if (offA1H8(squares[i]) == 0) continue;
+                    if (offA1H8(squares[i]) > 0)
+                        for (int j = i; j < size; j++) squares[j] = ((squares[j] >> 3) | (squares[j] << 3)) & 63;
+                    break;
+                }
+
+                if (hasUniquePieces) {
+                    int adjust1 = squares[1] > squares[0] ? 1 : 0;
+                    int adjust2 = (squares[2] > squares[0] ? 1 : 0) + (squares[2] > squares[1] ? 1 : 0);
+                    if (offA1H8(squares[0]) != 0)
+                        idx = (MAP_A1D1D4[squares[0]] * 63L + (squares[1] - adjust1)) * 62 + squares[2] - adjust2;
+                    else if (offA1H8(squares[1]) != 0)
+                        idx = (6 * 63 + squares[0] / 8 * 28 + MAP_B1H1H7[squares[1]]) * 62L + squares[2] - adjust2;
+                    else if (offA1H8(squares[2]) != 0)
+                        idx = 6 * 63 * 62 + 4 * 28 * 62 + squares[0] / 8 * 7 * 28
+                            + (squares[1] / 8 - adjust1) * 28 + MAP_B1H1H7[squares[2]];
+                    else
+                        idx = 6 * 63 * 62 + 4 * 28 * 62 + 4 * 7 * 28 + squares[0] / 8 * 7 * 6
+                            + (squares[1] / 8 - adjust1) * 6 + (squares[2] / 8 - adjust2);
+                } else {
+                    idx = MAP_KK[MAP_A1D1D4[squares[0]]][squares[1]];
+                }
+            }
+
+            // The remaining groups in ascending order of squares, skipping those taken before
+            idx *= d.groupIdx[0];
+            int group = d.groupLen[0];
+            boolean remainingPawns = hasPawns && pawnCount[1] > 0;
+            for (int next = 1; d.groupLen[next] != 0; next++) {
+                Arrays.sort(squares, group, group + d.groupLen[next]);
+                long n = 0;
+                for (int i = 0; i < d.groupLen[next]; i++) {
+                    int sq = squares[group + i];
+                    int adjust = 0;
+                    for (int j = 0; j < group; j++)
+                        if (sq > squares[j]) adjust++;
+                    n += BINOMIAL[i + 1][sq - adjust - (remainingPawns ? 8 : 0)];
+                }
+                remainingPawns = false;
+                idx += n * d.groupIdx[next];
+                group += d.groupLen[next];
+            }
+
+            int value = decompress(d, idx);
+            return dtz ? dtzValue(tbFile, value, wdl) : value - 2;
+        }
+
+        // In plies, some tables store moves
+        int dtzValue(int file, int value, int wdl) {
+            var d = get(0, file);
+            if ((d.flags & MAPPED) != 0) {
+                long index = d.mapIdx[new int[] { 1, 3, 0, 2, 0 }[wdl + 2]] + value;
+                value = (d.flags & WIDE) != 0 ? map.u16(dtzMap + 2 * index) : map.u8(dtzMap + index);
+            }
+            if ((wdl == WIN && (d.flags & WIN_PLIES) == 0) || (wdl == LOSS && (d.flags & LOSS_PLIES) == 0)
+                    || wdl == CURSED_WIN || wdl == BLESSED_LOSS)
+                value *= 2;
+            return value + 1;
+        }
+
+        static void swap(int[] array, int i, int j) {
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+
+        // Pieces of the tables count from 1 for a white pawn, black pieces have bit 3 set
+        static int code(int piece) {
+            return piece == Position.EMPTY ? 0 : piece % 6 + 1 + (piece >= 6 ? 8 : 0);
+        }
+    }
+
+    record Line(String move, int dtz, int rank, boolean mate) {}
+
+    static System.Logger logging = System.getLogger("Syzygy");
+
+    final Map<String, Path> files = new HashMap<>();
+    final Map<String, Optional<Table>> tables = new ConcurrentHashMap<>();
+    final int maxPieces;
+    int pvPlies = 8;
+
+    Syzygy(List<Path> directories) throws IOException {
+        for (var directory : directories) {
+            try (Stream<Path> stream = Files.walk(directory, 2)) {
+                stream.filter(Files::isRegularFile).forEach(file -> {
+                    var name = file.getFileName().toString();
+                    if (name.matches("K[QRBNP]*vK[QRBNP]*\\.rtb[wz]")) files.putIfAbsent(name, file);
+                });
+            }
+        }
+        maxPieces = files.keySet().stream()
+            .filter(name -> name.endsWith(".rtbw"))
+            .mapToInt(name -> name.indexOf('.') - 1)
+            .max().orElse(0);
+        logging.log(Level.INFO, () -> "Found %d tablebase files, up to %d pieces, in %s".formatted(files.size(), maxPieces, directories));
+    }
+
+    static String material(Position pos, boolean white) {
+        var sb = new StringBuilder("K");
+        for (int type : new int[] { 4, 3, 2, 1, 0 })
+            for (int piece : pos.board)
+                if (piece == type + (white ? 0 : 6)) sb.append(Position.PIECES.charAt(type));
+        return sb.toString();
+    }
+
+    static int pieces(Position pos) {
+        return (int) Arrays.stream(pos.board).filter(piece -> piece != Position.EMPTY).count();
+    }
+
+    // The table, its file name and whether black has its white pieces
+    record Found(Table table, String fileName, boolean blackStronger) {}
+
+    Found table(Position pos, boolean dtz) {
+        String white = material(pos, true), black = material(pos, false);
+        var table = table(white + "v" + black, dtz);
+        if (table != null) return new Found(table, fileName(white + "v" + black, dtz), false);
+        table = table(black + "v" + white, dtz);
+        if (table != null) return new Found(table, fileName(black + "v" + white, dtz), true);
+        throw UNAVAILABLE;
+    }
+
+    static String fileName(String name, boolean dtz) {
+        return name + (dtz ? ".rtbz" : ".rtbw");
+    }
+
+    Table table(String name, boolean dtz) {
+        var fileName = fileName(name, dtz);
+        var file = files.get(fileName);
+        if (file == null) return null;
+        return tables.computeIfAbsent(fileName, __ -> {
+            try {
+                return Optional.of(new Table(name, file, dtz));
+            } catch (IOException | RuntimeException e) {
+                logging.log(Level.WARNING, () -> "Not using %s: %s".formatted(file, e.getMessage()));
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    int probeWdlTable(Position pos) {
+        if (pieces(pos) == 2) return DRAW;
+        return probe(table(pos, false), pos, DRAW);
+    }
+
+    int probeDtzTable(Position pos, int wdl) {
+        return probe(table(pos, true), pos, wdl);
+    }
+
+    // A truncated or corrupt file can fail anywhere in decoding, the table is then
+    // dropped and its positions are left to the engine from now on
+    int probe(Found found, Position pos, int wdl) {
+        try {
+            return found.table().probe(pos, found.blackStronger(), wdl);
+        } catch (Unavailable e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (tables.replace(found.fileName(), Optional.of(found.table()), Optional.empty()))
+                logging.log(Level.WARNING, () -> "Not using %s any more: %s".formatted(found.fileName(), e));
+            throw UNAVAILABLE;
+        }
+    }
+
+    static boolean capture(Position pos, String move) {
+        int to = Position.square(move, 2);
+        return pos.board[to] != Position.EMPTY
+            || (pos.board[Position.square(move, 0)] % 6 == 0 && to == pos.enPassant);
+    }
+
+    static boolean zeroing(Position pos, String move) {
+        return capture(pos, move) || pos.board[Position.square(move, 0)] % 6 == 0;
+    }
+
+    static Position play(Position pos, String move) {
+        var next = new Position(pos);
+        next.play(move);
+        return next;
+    }
+
+    static int dtzBeforeZeroing(int wdl) {
+        return switch (wdl) {
+            case WIN -> 1;
+            case CURSED_WIN -> 101;
+            case BLESSED_LOSS -> -101;
+            case LOSS -> -1;
+            default -> 0;
+        };
+    }
+
+    // The tables hold "don't care" values where a capture, or for DTZ also a pawn move,
+    // wins, and may hold a loss where a capture draws, so those are searched first.
+    // Zeroing is set when the best move resets the 50 move counter.
+    record Wdl(int value, boolean zeroing) {}
+
+    Wdl search(Position pos, boolean pawnMoves) {
+        int best = LOSS;
+        var moves = pos.moves();
+        int searched = 0;
+        for (var move : moves) {
+            if (! capture(pos, move) && (! pawnMoves || pos.board[Position.square(move, 0)] % 6 != 0)) continue;
+            searched++;
+            int value = -search(play(pos, move), false).value();
+            if (value > best) {
+                best = value;
+                if (value >= WIN) return new Wdl(value, true);
+            }
+        }
+
+        boolean noMoreMoves = searched > 0 && searched == moves.size();
+        int value = noMoreMoves ? best : probeWdlTable(pos);
+        if (best >= value) return new Wdl(best, best > DRAW || noMoreMoves);
+        return new Wdl(value, false);
+    }
+
+    int wdl(Position pos) {
+        return search(pos, false).value();
+    }
+
+    // Plies to the next capture or pawn move with best play, signed by the result
+    int dtz(Position pos) {
+        var wdl = search(pos, true);
+        if (wdl.value() == DRAW) return 0;
+        if (wdl.zeroing()) return dtzBeforeZeroing(wdl.value());
+
+        int dtz = probeDtzTable(pos, wdl.value());
+        if (dtz != CHANGE_STM)
+            return (dtz + (wdl.value() == BLESSED_LOSS || wdl.value() == CURSED_WIN ? 100 : 0)) * Integer.signum(wdl.value());
+
+        // The table only has the other side to move, take the best move of one ply
+        int min = 0xFFFF;
+        for (var move : pos.moves()) {
+            boolean zeroing = zeroing(pos, move);
+            var next = play(pos, move);
+            dtz = zeroing ? -dtzBeforeZeroing(wdl(next)) : -dtz(next);
+            if (dtz == 1 && next.inCheck() && next.moves().isEmpty()) min = 1;
+            if (! zeroing) dtz += Integer.signum(dtz);
+            if (dtz < min && Integer.signum(dtz) == Integer.signum(wdl.value())) min = dtz;
+        }
+        return min == 0xFFFF ? -1 : min;
+    }
+
+    // Each move with its distance to zeroing counted from this position, wins within the 50
+    // move rule rank highest, the fastest of those first, and the slowest losses first
+    List<Line> rank(Position pos) {
+        List<Line> lines = new ArrayList<>();
+        for (var move : pos.moves()) {
+            var next = play(pos, move);
+            int dtz;
+            if (next.halfmoves == 0) {
+                dtz = dtzBeforeZeroing(-wdl(next));
+            } else {
+                dtz = -dtz(next);
+                dtz = dtz > 0 ? dtz + 1 : dtz < 0 ? dtz - 1 : 0;
+            }
+            boolean mate = next.inCheck() && next.moves().isEmpty();
+            if (mate) dtz = 1;
+            int cnt50 = pos.halfmoves;
+            int rank = dtz > 0 ? (dtz + cnt50 <= 99 ? MAX_DTZ : MAX_DTZ - (dtz + cnt50))
+                : dtz < 0 ? (-dtz * 2 + cnt50 < 100 ? -MAX_DTZ : -MAX_DTZ + (-dtz + cnt50))
+                : 0;
+            lines.add(new Line(move, dtz, rank, mate));
+        }
+        lines.sort(Comparator.comparingInt(Line::rank).reversed()
+                .thenComparing(Comparator.comparingInt(Line::dtz)));
+        return lines;
+    }
+
+    // Wins show as large scores which shrink with the distance, cursed wins as a few
+    // centipawns like Stockfish does
+    static String score(Line line) {
+        if (line.mate()) return "mate 1";
+        int rank = line.rank();
+        if (rank >= MAX_DTZ - 100) return "cp " + (TB_CP - Math.abs(line.dtz()));
+        if (rank > 0) return "cp " + Math.max(3, rank - (MAX_DTZ - 200)) / 2;
+        if (rank == 0) return "cp 0";
+        if (rank > -MAX_DTZ + 100) return "cp " + Math.min(-3, rank + (MAX_DTZ - 200)) / 2;
+        return "cp " + (-TB_CP + Math.abs(line.dtz()));
+    }
+
+    // Follows the best ranked moves from the move, up to a zeroing move or a draw
+    List<String> pv(Position pos, Line line) {
+        List<String> pv = new ArrayList<>(List.of(line.move()));
+        var next = play(pos, line.move());
+        while (pv.size() < pvPlies && next.halfmoves != 0 && line.dtz() != 0) {
+            var lines = rank(next);
+            if (lines.isEmpty()) break;
+            var best = lines.get(0);
+            pv.add(best.move());
+            if (zeroing(next, best.move()) || best.dtz() == 0) break;
+            next = play(next, best.move());
+        }
+        return pv;
+    }
+
+    // The position when it is standard chess within the tables
+    Position covered(ExternalEngineWork work) {
+        if (! work.variant().equals("chess")) return null;
+        try {
+            var pos = new Position(work.variant(), work.initialFen());
+            for (var move : work.moves())
+                pos.play(move);
+            return pos.castling == 0 && pieces(pos) <= maxPieces ? pos : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The info lines of a complete answer, or null to leave the position to the engine.
+    // The result of the position has to agree with its best move, a wrong table or
+    // decoding leaves it to the engine too.
+    byte[] answer(ExternalEngineWork work, Position pos, int depth) {
+        long nanos = System.nanoTime();
+        try {
+            var lines = rank(pos);
+            if (lines.isEmpty()) return null;
+            int wdl = wdl(pos);
+            if (Integer.signum(wdl) != Integer.signum(lines.get(0).dtz())) {
+                logging.log(Level.WARNING, () -> "Tablebase result %d disagrees with best move %s, leaving [%s] to the engine".formatted(
+                            wdl, lines.get(0), pos.fen()));
+                return null;
+            }
+            long time = (System.nanoTime() - nanos) / 1_000_000;
+            var sb = new StringBuilder();
+            for (int i = 0; i < Math.min(Math.max(1, work.multiPv()), lines.size()); i++) {
+                var line = lines.get(i);
+                var pv = pv(pos, line);
+                sb.append("info depth %d seldepth %d multipv %d score %s nodes %d nps 0 tbhits %d time %d pv %s\n".formatted(
+                            depth, pv.size(), i + 1, score(line), lines.size(), lines.size(), time, String.join(" ", pv)));
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (Unavailable e) {
+            return null;
+        } catch (RuntimeException e) {
+            logging.log(Level.WARNING, () -> "Leaving [%s] to the engine: %s".formatted(pos.fen(), e));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ee;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import chariot.model.ExternalEngineWork;
+
+// A trace of the acquired work, one tab separated line per request with the milliseconds
+// since recording started, the index of the registration and what was asked for.
+// Session ids are replaced by sequence numbers and request ids are left out.
+// Files ending in .gz are compressed.
+class Trace implements Closeable {
+
+    record Entry(long millis, int registration, String session, int threads, int hash,
+            boolean infinite, int multiPv, String variant, String initialFen, List<String> moves) {
+
+        String line() {
+            return String.join("\t", String.valueOf(millis), String.valueOf(registration), session,
+                    String.valueOf(threads), String.valueOf(hash), infinite ? "infinite" : "depth",
+                    String.valueOf(multiPv), variant, initialFen, String.join(" ", moves));
+        }
+
+        static Entry parse(String line) {
+            String[] arr = line.split("\t", -1);
+            return new Entry(Long.parseLong(arr[0]), Integer.parseInt(arr[1]), arr[2],
+                    Integer.parseInt(arr[3]), Integer.parseInt(arr[4]), arr[5].equals("infinite"),
+                    Integer.parseInt(arr[6]), arr[7], arr[8],
+                    arr[9].isEmpty() ? List.of() : List.of(arr[9].split(" ")));
+        }
+
+        ExternalEngineWork work() {
+            return new ExternalEngineWork(session, threads, hash, infinite, multiPv, variant, initialFen, moves);
+        }
+    }
+
+    static int maxSessions = 4096;
+
+    final Writer writer;
+    final long start = System.nanoTime();
+    int sequence;
+    final Map<String, String> sessions = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) { return size() > maxSessions; }
+    };
+
+    Trace(Path file) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        if (file.toString().endsWith(".gz")) out = new GZIPOutputStream(out, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    synchronized void record(int registration, ExternalEngineWork work) {
+        var session = sessions.computeIfAbsent(work.sessionId(), __ -> "s" + ++sequence);
+        var entry = new Entry((System.nanoTime() - start) / 1_000_000, registration, session,
+                work.threads(), work.hash(), work.infinite(), work.multiPv(), work.variant(), work.initialFen(), work.moves());
+        try {
+            writer.write(entry.line());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException ioe) {
+            Main.logging.log(System.Logger.Level.WARNING, () -> "Failed to record trace: %s".formatted(ioe.getMessage()));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    static List<Entry> read(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (file.toString().endsWith(".gz")) in = new GZIPInputStream(in);
+        try (var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return reader.lines()
+                .filter(line -> ! line.isBlank())
+                .map(Entry::parse)
+                .toList();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ee;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+
+@CommandLine.Command(name = "ee-worker", sortOptions = false, usageHelpAutoWidth = true, showDefaultValues = true)
+class Worker implements Runnable {
+
+    static final String GREETING = "ee-worker";
+    static final String CONNECT = "ee-connect";
+    static final String PING = "ee-ping";
+    static final String PONG = "ee-pong";
+
+    // What a provider needs to analyse, anything else could make the engine touch files
+    static final Set<String> COMMANDS = Set.of("uci", "isready", "setoption", "position", "go", "stop", "ucinewgame");
+    // The options the pool sets, others such as SyzygyPath or EvalFile name files on this host
+    static final Set<String> OPTIONS = Set.of("uci_analysemode", "uci_chess960", "threads", "hash", "multipv", "uci_variant");
+
+    static System.Logger logging = System.getLogger("Worker");
+
+    Semaphore free;
+    // Each engine gets an equal share of the box
+    int threads;
+    int hash;
+
+    public void run() {
+        if (secret == null || secret.isBlank()) {
+            throw new CommandLine.ParameterException(new CommandLine(this), "Missing required option: '--secret=<secret>'");
+        }
+        var budget = Budget.read();
+        if (slots == null) {
+            slots = budget.cpus();
+        }
+        threads = Math.max(1, budget.cpus() / Math.max(1, slots));
+        hash = Math.max(16, budget.hash(Math.max(1, slots)) / Math.max(1, slots));
+        free = new Semaphore(slots);
+
+        try (var serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bind))) {
+            logging.log(Level.INFO, () -> "Serving %d engine slots of %d threads and %d MiB hash on %s".formatted(
+                        slots, threads, hash, serverSocket.getLocalSocketAddress()));
+            while (true) {
+                var socket = serverSocket.accept();
+                Thread.ofPlatform().daemon().start(() -> serve(socket));
+            }
+        } catch (IOException ioe) {
+            logging.log(Level.ERROR, "Failed to serve", ioe);
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            var fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            var toClient = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            if (! free.tryAcquire()) {
+                writeLine(toClient, greeting(0));
+                return;
+            }
+
+            try {
+                writeLine(toClient, greeting(free.availablePermits() + 1));
+                // A probe leaves after the greeting
+                var handshake = fromClient.readLine();
+                if (handshake == null) return;
+                if (! authorized(handshake)) {
+                    logging.log(Level.WARNING, () -> "Refused %s, wrong secret".formatted(socket.getRemoteSocketAddress()));
+                    return;
+                }
+
+                var process = new ProcessBuilder(enginecmd).redirectErrorStream(true).start();
+                logging.log(Level.INFO, () -> "Started engine %d for %s".formatted(process.pid(), socket.getRemoteSocketAddress()));
+                try {
+                    Thread.ofPlatform().daemon().start(() -> {
+                        try {
+                            String line;
+                            while ((line = process.inputReader().readLine()) != null)
+                                writeLine(toClient, line);
+                        } catch (IOException ioe) {
+                            logging.log(Level.DEBUG, "Engine output closed", ioe);
+                        } finally {
+                            try { socket.close(); } catch (IOException ioe) {}
+                        }
+                    });
+
+                    var toEngine = process.outputWriter();
+                    String line;
+                    while ((line = fromClient.readLine()) != null) {
+                        if (line.equals(PING)) {
+                            writeLine(toClient, PONG);
+                        } else if (! allowed(line, allowedOptions)) {
+                            var refused = line;
+                            logging.log(Level.WARNING, () -> "Refused command from %s [%s]".formatted(socket.getRemoteSocketAddress(), refused));
+                        } else {
+                            toEngine.write(line);
+                            toEngine.newLine();
+                            toEngine.flush();
+                        }
+                    }
+                } finally {
+                    logging.log(Level.INFO, () -> "Stopping engine %d".formatted(process.pid()));
+                    process.destroy();
+                }
+            } finally {
+                free.release();
+            }
+        } catch (IOException ioe) {
+            logging.log(Level.DEBUG, "Connection closed", ioe);
+        }
+    }
+
+    String greeting(int free) {
+        return "%s slots %d free %d threads %d hash %d".formatted(GREETING, slots, free, threads, hash);
+    }
+
+    // The handshake is "ee-connect <secret>"
+    boolean authorized(String line) {
+        if (line == null || ! line.startsWith(CONNECT + " ")) return false;
+        return MessageDigest.isEqual(
+                line.substring(CONNECT.length() + 1).getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static boolean allowed(String line, List<String> allowedOptions) {
+        var command = line.strip().split("\\s+", 2)[0];
+        if (! COMMANDS.contains(command)) return false;
+        if (! command.equals("setoption")) return true;
+        var name = optionName(line);
+        return OPTIONS.contains(name) || allowedOptions.stream().map(Worker::normalize).anyMatch(name::equals);
+    }
+
+    // "setoption name Skill Level value 10" is "skill level", option names are case insensitive
+    static String optionName(String line) {
+        var words = normalize(line).split(" ");
+        var name = new StringJoiner(" ");
+        for (int i = 2; i < words.length && words[1].equals("name") && ! words[i].equals("value"); i++)
+            name.add(words[i]);
+        return name.toString();
+    }
+
+    static String normalize(String text) {
+        return text.strip().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    static void writeLine(BufferedWriter writer, String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    @Option(names = { "-h", "--help" }, usageHelp = true, description = "display a help message") boolean helpRequested = false;
+    @Option(names = {"--engine"}, defaultValue = "/usr/bin/stockfish", description="Shell command to launch UCI engine") String enginecmd;
+    @Option(names = {"--slots"}, description="Maximum number of engine processes to serve, defaults to the number of processors") Integer slots;
+    @Option(names = {"--port"}, defaultValue = "9670", description="Port to listen on") int port;
+    @Option(names = {"--bind"}, defaultValue = "127.0.0.1", description="Address to listen on, 0.0.0.0 for all interfaces") String bind;
+    @Option(names = {"--allow-option"}, description="Name of a further UCI option providers may set, such as Skill Level. Options naming files are refused unless allowed") List<String> allowedOptions = new ArrayList<>();
+    @Option(names = {"--secret"},
+            showDefaultValue = CommandLine.Help.Visibility.NEVER,
+            defaultValue = "${env:EE_WORKER_SECRET}",
+            description="Secret providers must connect with. May be set by environment variable EE_WORKER_SECRET.")
+    String secret;
+
+    public static void main(String[] args) throws Exception {
+        int exitCode = new picocli.CommandLine(new Worker()).execute(args);
+        System.exit(exitCode);
+    }
+}
@@ -5,6 +5,7 @@ module ee {
 
     requires java.desktop;
     requires jdk.zipfs;
+    requires jdk.httpserver;
 
     opens ee to info.picocli;
 }